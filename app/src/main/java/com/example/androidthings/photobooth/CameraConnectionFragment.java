@@ -35,10 +35,12 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
 
 import java.util.Collections;
 import java.util.concurrent.Semaphore;
@@ -55,11 +57,21 @@ public class CameraConnectionFragment extends Fragment {
      * A {@link Semaphore} to prevent the app from exiting before closing the camera.
      */
     private final Semaphore cameraOpenCloseLock = new Semaphore(1);
+    /**
+     * A {@link PreviewFrameGovernor} that lowers the camera frame rate to what the preview
+     * listener can actually convert.
+     */
+    private final PreviewFrameGovernor frameGovernor =
+            new PreviewFrameGovernor(fpsRange -> updatePreviewFrameRate());
+    /**
+     * A {@link FrameLatencyTracer} recording per-stage preview latency.
+     */
+    private final FrameLatencyTracer latencyTracer = new FrameLatencyTracer();
     /**
      * A {@link com.example.androidthings.photobooth.PhotoboothImageAvailableListener} when image becomes available.
      */
     private final PhotoboothImageAvailableListener imagePreviewListener
-            = new PhotoboothImageAvailableListener();
+            = new PhotoboothImageAvailableListener(frameGovernor, latencyTracer);
     /**
      * A {@link CameraCaptureSession } for camera preview.
      */
@@ -119,7 +131,7 @@ public class CameraConnectionFragment extends Fragment {
                     Log.d(TAG, "CameraDevice onOpened is called.");
                     cameraOpenCloseLock.release();
                     cameraDevice = cd;
-                    imagePreviewListener.initialize(getActivity(), sensorOrientation);
+                    imagePreviewListener.initialize(sensorOrientation);
                     createCaptureSession();
                 }
 
@@ -151,6 +163,9 @@ public class CameraConnectionFragment extends Fragment {
     @Override
     public void onViewCreated(final View view, final Bundle savedInstanceState) {
         // startPreview();
+        imagePreviewListener.setPresenter(
+                new PreviewPresenter((ImageView) view.findViewById(R.id.imageView),
+                        latencyTracer));
     }
 
     @Override
@@ -230,6 +245,11 @@ public class CameraConnectionFragment extends Fragment {
             previewRequestBuilder.set(
                     CaptureRequest.CONTROL_AWB_MODE, CaptureRequest.CONTROL_AWB_MODE_AUTO);
 
+            Range<Integer> fpsRange = frameGovernor.getTargetRange();
+            if (fpsRange != null) {
+                previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+            }
+
             // Finally, we start displaying the camera preview.
             CaptureRequest previewRequest = previewRequestBuilder.build();
             captureSession.setRepeatingRequest(
@@ -241,6 +261,32 @@ public class CameraConnectionFragment extends Fragment {
     }
 
 
+    /**
+     * Re-issues the repeating preview request with the frame rate picked by the
+     * {@link PreviewFrameGovernor}.  Runs on the background thread, same as the listener, and
+     * holds the camera lock so the session can't be closed underneath it.  If the camera is
+     * being opened or closed the change is skipped, a new session picks up the target range
+     * when it starts.
+     */
+    private void updatePreviewFrameRate() {
+        Range<Integer> fpsRange = frameGovernor.getTargetRange();
+        if (fpsRange == null || !cameraOpenCloseLock.tryAcquire()) {
+            return;
+        }
+        try {
+            if (captureSession == null || previewRequestBuilder == null) {
+                return;
+            }
+            previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+            captureSession.setRepeatingRequest(
+                    previewRequestBuilder.build(), captureCallback, backgroundHandler);
+        } catch (final CameraAccessException | IllegalStateException e) {
+            Log.w(TAG, "Unable to update preview frame rate", e);
+        } finally {
+            cameraOpenCloseLock.release();
+        }
+    }
+
     synchronized void stopPreview() {
         // halt updates to imageview
         imagePreviewListener.setPreviewMode(false);
@@ -277,6 +323,10 @@ public class CameraConnectionFragment extends Fragment {
         try {
             CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
             sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            frameGovernor.setAvailableRanges(characteristics.get(
+                    CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES));
+            latencyTracer.setTimestampSource(characteristics.get(
+                    CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE));
             StreamConfigurationMap configs = characteristics.get(
                     CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
             for (int format : configs.getOutputFormats()) {
@@ -351,6 +401,20 @@ public class CameraConnectionFragment extends Fragment {
         return Bitmap.createBitmap(previewBitmap);
     }
 
+    /**
+     * @return the governor tracking produced, dropped and displayed preview frame rates.
+     */
+    public PreviewFrameGovernor getFrameGovernor() {
+        return frameGovernor;
+    }
+
+    /**
+     * @return the tracer holding per-stage preview latency histograms.
+     */
+    public FrameLatencyTracer getLatencyTracer() {
+        return latencyTracer;
+    }
+
     public void clearLastImage() {
         if (imagePreviewListener != null) {
             imagePreviewListener.clearLastImage();
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import com.google.zxing.common.BitMatrix;
+
+import java.util.Arrays;
+
+/**
+ * Turns image rows into ESC/POS commands, 24 rows at a time.
+ *
+ * Each band is encoded into a single buffer owned by the encoder and reused for the next band,
+ * so printing an image allocates nothing per band, column or pixel.
+ *
+ * White costs nothing to print but plenty to send, so the encoder leaves it out where it can.
+ * A band with no black dots produces no output at all; runs of them are sent as a single
+ * {@code ESC d n} feed in front of the next band that has ink, or by {@link #finishImage()}.
+ * White columns on the right of a band are trimmed off.  In raster mode ({@code GS v 0}) white
+ * columns on the left are trimmed too, by moving the left margin with {@code GS L}.  Otherwise
+ * bands are sent as 24-dot bit images ({@code ESC * 33}), which every printer we've tried takes.
+ *
+ * Call {@link #beginImage()} before the first band of an image and {@link #finishImage()} after
+ * the last one.
+ */
+public class EscPosRasterEncoder {
+
+    public static final int BAND_HEIGHT = 24;
+    private static final int BYTES_PER_COLUMN = BAND_HEIGHT / 8;
+    // ESC d takes a single byte count of lines.
+    private static final int MAX_FEED_BANDS = 255;
+
+    private static final byte ESC = 0x1B;
+    private static final byte GS = 0x1D;
+    private static final byte LF = 0x0A;
+    private static final byte[] SET_LINE_SPACE_24 = {ESC, 0x33, BAND_HEIGHT};
+    private static final byte[] SELECT_BIT_IMAGE_MODE = {ESC, 0x2A, 33};
+    private static final byte[] PRINT_RASTER_IMAGE = {GS, 0x76, 0x30, 0};
+    private static final byte[] SET_LEFT_MARGIN = {GS, 0x4C};
+    private static final byte[] PRINT_AND_FEED_LINES = {ESC, 0x64};
+
+    private boolean mRasterMode = false;
+
+    private byte[] mBuffer = new byte[0];
+    private int mLength = 0;
+
+    // The band being encoded, packed one row after another, most significant bit on the left.
+    private byte[] mRows = new byte[0];
+    private int mRowBytes = 0;
+
+    // Per image state.
+    private int mPendingBlankBands = 0;
+    private int mLeftMargin = 0;
+    private int mLastDotLines = 0;
+    private long mEncodedBytes = 0;
+    private long mUncompressedBytes = 0;
+    private long mDotLines = 0;
+
+    /**
+     * Sends bands with {@code GS v 0} instead of {@code ESC * 33}, for printers that support it.
+     * Only takes effect from the next {@link #beginImage()}.
+     */
+    public void setRasterMode(boolean rasterMode) {
+        mRasterMode = rasterMode;
+    }
+
+    /**
+     * @return the buffer holding the last encoded output.  Only valid until the next call.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * @return dot lines the printer feeds while working through the last encoded output.
+     */
+    public int getLastDotLines() {
+        return mLastDotLines;
+    }
+
+    /**
+     * @return bytes encoded for the current image so far.
+     */
+    public long getEncodedBytes() {
+        return mEncodedBytes;
+    }
+
+    /**
+     * @return bytes the current image would have taken as plain, untrimmed 24-dot bands.
+     */
+    public long getUncompressedBytes() {
+        return mUncompressedBytes;
+    }
+
+    /**
+     * @return dot lines fed for the current image so far.
+     */
+    public long getDotLines() {
+        return mDotLines;
+    }
+
+    /**
+     * Resets the per image state and counters.
+     */
+    public void beginImage() {
+        mPendingBlankBands = 0;
+        mLeftMargin = 0;
+        mEncodedBytes = 0;
+        mUncompressedBytes = 0;
+        mDotLines = 0;
+    }
+
+    /**
+     * Flushes blank bands still waiting to be fed and puts the left margin back.
+     *
+     * @return number of valid bytes in {@link #getBuffer()}, possibly zero.
+     */
+    public int finishImage() {
+        mLength = 0;
+        mLastDotLines = 0;
+        ensureCapacity(feedSize(mPendingBlankBands) + SET_LEFT_MARGIN.length + 2);
+        appendPendingFeed();
+        if (mLeftMargin != 0) {
+            appendLeftMargin(0);
+        }
+        return commit();
+    }
+
+    /**
+     * Encodes a band of rows that have already been reduced to one bit per dot, e.g. by
+     * {@link PrintDitherer}.
+     *
+     * @param band     Packed rows, most significant bit first, set bits are printed.
+     * @param offset   Where the band's first row starts in {@code band}, e.g. somewhere in the
+     *                 middle of a {@link MonoBitmap}.
+     * @param rowBytes Bytes per packed row.
+     * @param width    Dots per row.
+     * @param rows     Valid rows in {@code band}, at most {@link #BAND_HEIGHT}.  Missing rows
+     *                 are sent as white.
+     * @return number of valid bytes in {@link #getBuffer()}, zero for a blank band.
+     */
+    public int encodePackedBand(byte[] band, int offset, int rowBytes, int width, int rows) {
+        int bandRowBytes = clearRows(width);
+        rows = Math.min(rows, BAND_HEIGHT);
+        int copy = Math.min(rowBytes, bandRowBytes);
+        for (int r = 0; r < rows; r++) {
+            System.arraycopy(band, offset + r * rowBytes, mRows, r * bandRowBytes, copy);
+        }
+        return encodeRows(width);
+    }
+
+    /**
+     * Encodes a band of a QR code, or any other {@link BitMatrix}, scaled up by a whole number of
+     * dots per module.  Bits are set straight from the matrix, no pixels are involved, and each
+     * module row is worked out once and copied for the rest of the dot rows it covers.
+     *
+     * @param matrix  One bit per module, set bits are printed.
+     * @param scale   Dots per module in both directions.
+     * @param padding White dots around the scaled matrix, on every side.
+     * @param bandTop First dot row of the band.
+     * @return number of valid bytes in {@link #getBuffer()}, zero for a blank band.
+     */
+    public int encodeMatrixBand(BitMatrix matrix, int scale, int padding, int bandTop) {
+        int modules = matrix.getWidth();
+        int size = modules * scale + padding * 2;
+        int rowBytes = clearRows(size);
+
+        int rows = Math.min(BAND_HEIGHT, size - bandTop);
+        int previousModuleRow = -1;
+        for (int r = 0; r < rows; r++) {
+            int y = bandTop + r - padding;
+            if (y < 0 || y >= modules * scale) {
+                continue;
+            }
+            int moduleRow = y / scale;
+            int out = r * rowBytes;
+            if (moduleRow == previousModuleRow) {
+                System.arraycopy(mRows, out - rowBytes, mRows, out, rowBytes);
+                continue;
+            }
+            previousModuleRow = moduleRow;
+            for (int mx = 0; mx < modules; mx++) {
+                if (matrix.get(mx, moduleRow)) {
+                    int from = padding + mx * scale;
+                    setBits(out, from, from + scale);
+                }
+            }
+        }
+
+        return encodeRows(size);
+    }
+
+    /**
+     * Sets dots {@code from} (inclusive) to {@code to} (exclusive) of the packed row at
+     * {@code rowOffset}.
+     */
+    private void setBits(int rowOffset, int from, int to) {
+        while (from < to) {
+            int bit = from & 7;
+            int count = Math.min(8 - bit, to - from);
+            mRows[rowOffset + (from >> 3)] |= (byte) ((0xff >>> bit) & ~(0xff >>> (bit + count)));
+            from += count;
+        }
+    }
+
+    /**
+     * Sizes and clears the packed row buffer for a band.
+     *
+     * @return bytes per packed row.
+     */
+    private int clearRows(int width) {
+        mRowBytes = (width + 7) / 8;
+        int size = mRowBytes * BAND_HEIGHT;
+        if (mRows.length < size) {
+            mRows = new byte[size];
+        } else {
+            Arrays.fill(mRows, 0, size, (byte) 0);
+        }
+        return mRowBytes;
+    }
+
+    /**
+     * Works out which part of the band has ink and encodes just that part.
+     */
+    private int encodeRows(int width) {
+        mUncompressedBytes += SET_LINE_SPACE_24.length + SELECT_BIT_IMAGE_MODE.length + 2
+                + width * BYTES_PER_COLUMN + 1;
+        mLength = 0;
+        mLastDotLines = 0;
+
+        // Any bit set in a column of bytes, over all the rows of the band.
+        int firstByte = -1;
+        int lastByte = -1;
+        int lastBits = 0;
+        for (int i = 0; i < mRowBytes; i++) {
+            int bits = 0;
+            for (int r = 0, at = i; r < BAND_HEIGHT; r++, at += mRowBytes) {
+                bits |= mRows[at];
+            }
+            bits &= 0xff;
+            if (bits != 0) {
+                if (firstByte < 0) {
+                    firstByte = i;
+                }
+                lastByte = i;
+                lastBits = bits;
+            }
+        }
+        if (firstByte < 0) {
+            // Nothing to print, feed for it together with the next band that has ink.
+            mPendingBlankBands++;
+            return 0;
+        }
+
+        if (mRasterMode) {
+            int widthBytes = lastByte - firstByte + 1;
+            ensureCapacity(feedSize(mPendingBlankBands) + SET_LEFT_MARGIN.length + 2
+                    + PRINT_RASTER_IMAGE.length + 4 + widthBytes * BAND_HEIGHT);
+            appendPendingFeed();
+            if (mLeftMargin != firstByte * 8) {
+                appendLeftMargin(firstByte * 8);
+            }
+            appendRaster(firstByte, widthBytes);
+        } else {
+            // The rightmost dot is the lowest set bit of the last byte with ink.
+            int columns = Math.min(width,
+                    lastByte * 8 + 8 - Integer.numberOfTrailingZeros(lastBits));
+            ensureCapacity(feedSize(mPendingBlankBands) + SET_LINE_SPACE_24.length
+                    + SELECT_BIT_IMAGE_MODE.length + 2 + columns * BYTES_PER_COLUMN + 1);
+            appendPendingFeed();
+            appendBitImage(columns);
+        }
+        mLastDotLines += BAND_HEIGHT;
+        return commit();
+    }
+
+    /**
+     * Appends {@code ESC 3 24 ESC * 33 nL nH}, the column data and a line feed.
+     */
+    private void appendBitImage(int columns) {
+        append(SET_LINE_SPACE_24);
+        append(SELECT_BIT_IMAGE_MODE);
+        mBuffer[mLength++] = (byte) (columns & 0xff);
+        mBuffer[mLength++] = (byte) ((columns >> 8) & 0xff);
+
+        int dataOffset = mLength;
+        // Each 8x8 block of dots, 8 rows of one packed byte, becomes 8 column bytes.
+        for (int i = 0, col = 0; col < columns; i++, col += 8) {
+            int end = Math.min(8, columns - col);
+            for (int k = 0; k < BYTES_PER_COLUMN; k++) {
+                int at = k * 8 * mRowBytes + i;
+                int hi = (mRows[at] & 0xff) << 24 | (mRows[at + mRowBytes] & 0xff) << 16
+                        | (mRows[at + 2 * mRowBytes] & 0xff) << 8
+                        | (mRows[at + 3 * mRowBytes] & 0xff);
+                at += 4 * mRowBytes;
+                int lo = (mRows[at] & 0xff) << 24 | (mRows[at + mRowBytes] & 0xff) << 16
+                        | (mRows[at + 2 * mRowBytes] & 0xff) << 8
+                        | (mRows[at + 3 * mRowBytes] & 0xff);
+                int out = dataOffset + col * BYTES_PER_COLUMN + k;
+                if ((hi | lo) == 0) {
+                    // Blank block, common in margins and light areas.
+                    for (int b = 0; b < end; b++) {
+                        mBuffer[out + b * BYTES_PER_COLUMN] = 0;
+                    }
+                    continue;
+                }
+                long block = transpose8((long) hi << 32 | (lo & 0xffffffffL));
+                for (int b = 0; b < end; b++) {
+                    mBuffer[out + b * BYTES_PER_COLUMN] = (byte) (block >>> (56 - 8 * b));
+                }
+            }
+        }
+        mLength = dataOffset + columns * BYTES_PER_COLUMN;
+        mBuffer[mLength++] = LF;
+    }
+
+    /**
+     * Transposes an 8x8 bit matrix, one row per byte with the first row in the top byte and the
+     * first column in each byte's top bit.  From Hacker's Delight, 7-3.
+     */
+    private static long transpose8(long x) {
+        long t = (x ^ (x >>> 7)) & 0x00AA00AA00AA00AAL;
+        x = x ^ t ^ (t << 7);
+        t = (x ^ (x >>> 14)) & 0x0000CCCC0000CCCCL;
+        x = x ^ t ^ (t << 14);
+        t = (x ^ (x >>> 28)) & 0x00000000F0F0F0F0L;
+        return x ^ t ^ (t << 28);
+    }
+
+    /**
+     * Appends {@code GS v 0 0 xL xH yL yH} and the rows, already in the order it wants.
+     */
+    private void appendRaster(int firstByte, int widthBytes) {
+        append(PRINT_RASTER_IMAGE);
+        mBuffer[mLength++] = (byte) (widthBytes & 0xff);
+        mBuffer[mLength++] = (byte) ((widthBytes >> 8) & 0xff);
+        mBuffer[mLength++] = (byte) BAND_HEIGHT;
+        mBuffer[mLength++] = 0;
+        for (int r = 0; r < BAND_HEIGHT; r++) {
+            System.arraycopy(mRows, r * mRowBytes + firstByte, mBuffer, mLength, widthBytes);
+            mLength += widthBytes;
+        }
+    }
+
+    private void appendLeftMargin(int dots) {
+        append(SET_LEFT_MARGIN);
+        mBuffer[mLength++] = (byte) (dots & 0xff);
+        mBuffer[mLength++] = (byte) ((dots >> 8) & 0xff);
+        mLeftMargin = dots;
+    }
+
+    /**
+     * Appends the feed for the blank bands skipped since the last band with ink.
+     */
+    private void appendPendingFeed() {
+        if (mPendingBlankBands == 0) {
+            return;
+        }
+        mLastDotLines += mPendingBlankBands * BAND_HEIGHT;
+        append(SET_LINE_SPACE_24);
+        while (mPendingBlankBands > 0) {
+            int bands = Math.min(mPendingBlankBands, MAX_FEED_BANDS);
+            append(PRINT_AND_FEED_LINES);
+            mBuffer[mLength++] = (byte) bands;
+            mPendingBlankBands -= bands;
+        }
+    }
+
+    private static int feedSize(int bands) {
+        if (bands == 0) {
+            return 0;
+        }
+        int commands = (bands + MAX_FEED_BANDS - 1) / MAX_FEED_BANDS;
+        return SET_LINE_SPACE_24.length + commands * (PRINT_AND_FEED_LINES.length + 1);
+    }
+
+    private void append(byte[] command) {
+        System.arraycopy(command, 0, mBuffer, mLength, command.length);
+        mLength += command.length;
+    }
+
+    private void ensureCapacity(int size) {
+        if (mBuffer.length < size) {
+            mBuffer = new byte[size];
+        }
+    }
+
+    private int commit() {
+        mEncodedBytes += mLength;
+        mDotLines += mLastDotLines;
+        return mLength;
+    }
+}
@@ -18,33 +18,74 @@ package com.example.androidthings.photobooth;
 
 import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.google.firebase.auth.AuthResult;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.database.ValueEventListener;
-import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageMetadata;
-import com.google.firebase.storage.StorageReference;
-import com.google.firebase.storage.UploadTask;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class FirebaseStorageAdapter {
 
     public final String TAG = "FirebaseStorageAdapter";
-    FirebaseStorage mStorage = FirebaseStorage.getInstance();
+    static final String ROLE_ORIGINAL = "original";
+    static final String ROLE_STYLED = "styled";
+    // One thread per role, so the original and styled images encode side by side.
+    private static final int ENCODE_THREADS = 2;
+    // How long to wait to tell the listener a link is live, uploads can sit out an outage.
+    private static final long LINK_TIMEOUT_MS = 10 * 60 * 1000;
+    // Previews only have to be recognisable, a few KB each.
+    private static final int PREVIEW_MAX_SIZE = 320;
+    private static final int PREVIEW_QUALITY = 40;
+
     private FirebaseAuth.AuthStateListener mAuthListener;
     private FirebaseAuth mAuth;
 
-    public FirebaseStorageAdapter() {
+    private volatile ImageEncoder mOriginalEncoder =
+            new ImageEncoder(ROLE_ORIGINAL, Bitmap.CompressFormat.JPEG, 90);
+    private volatile ImageEncoder mStyledEncoder =
+            new ImageEncoder(ROLE_STYLED, Bitmap.CompressFormat.JPEG, 90);
+    private final ImageEncoder mPreviewEncoder =
+            new ImageEncoder("preview", Bitmap.CompressFormat.JPEG, PREVIEW_QUALITY);
+    private final ExecutorService mEncodeExecutor = Executors.newFixedThreadPool(ENCODE_THREADS);
+    private final UploadQueue mUploadQueue;
+    private final String mShareBaseUrl;
+    private final UploadIndex mUploadIndex;
+    // Share IDs claimed and not yet uploaded, to their content key once per claim.
+    private final Map<String, List<String>> mClaims = new HashMap<>();
+    private final ShareLinkResolver mLinkResolver =
+            new ShareLinkResolver(FirebaseDatabase.getInstance().getReference("shares"));
+
+    // Time from encoding an urgent image to its link being live, and to the full image landing.
+    private int mLinkCount = 0;
+    private long mTotalLinkMs = 0;
+    private int mFullCount = 0;
+    private long mTotalFullMs = 0;
+
+    /**
+     * @param uploadQueue  Where encoded images wait to be uploaded, started by the caller.
+     * @param shareBaseUrl What share IDs are appended to for the printed links.
+     */
+    public FirebaseStorageAdapter(UploadQueue uploadQueue, String shareBaseUrl) {
+        mUploadQueue = uploadQueue;
+        mShareBaseUrl = shareBaseUrl;
+        mUploadIndex = new UploadIndex(uploadQueue.getSpoolDir());
+        mUploadQueue.setListener(this::onUploaded);
         mAuth = FirebaseAuth.getInstance();
         initializeAuth();
     }
@@ -67,26 +108,31 @@ public class FirebaseStorageAdapter {
     }
 
     /**
-     * Get a reference to the "images" directory on Firebase Storage.
-     *
-     * @return reference to "images" upload directory.
+     * Sets how images for a role, {@link #ROLE_ORIGINAL} or {@link #ROLE_STYLED}, are encoded.
      */
-    public StorageReference getImagesStorageRef() {
-        if (mStorage == null) {
-            mStorage = FirebaseStorage.getInstance();
+    public void setEncoder(String role, Bitmap.CompressFormat format, int quality) {
+        ImageEncoder encoder = new ImageEncoder(role, format, quality);
+        if (ROLE_STYLED.equals(role)) {
+            mStyledEncoder = encoder;
+        } else {
+            mOriginalEncoder = encoder;
         }
-        return mStorage.getReference("images");
+    }
+
+    private ImageEncoder getEncoder(String role) {
+        return ROLE_STYLED.equals(role) ? mStyledEncoder : mOriginalEncoder;
     }
 
     /**
      * Helper method to generate a filename, which will be the timestamp (for easy searching
      * and sorting) with optional prefix and suffixes.
      *
-     * @param prefix Will go in front of the timestamp in the filename.
-     * @param suffix Will go after the timestamp in the filename.
-     * @return image filename of form "prefix-timestamp-suffix.png".
+     * @param prefix    Will go in front of the timestamp in the filename.
+     * @param suffix    Will go after the timestamp in the filename.
+     * @param extension File extension, without the dot.
+     * @return image filename of form "prefix-timestamp-suffix.extension".
      */
-    public String getTimestampedFileName(String prefix, String suffix) {
+    public String getTimestampedFileName(String prefix, String suffix, String extension) {
         SimpleDateFormat s = new SimpleDateFormat("yyyymmddhhmmssSSS");
         String timestamp = s.format(new Date());
 
@@ -99,90 +145,219 @@ public class FirebaseStorageAdapter {
             stringBuilder.append("-").append(suffix);
         }
 
-        stringBuilder.append(".png");
+        stringBuilder.append(".").append(extension);
         return stringBuilder.toString();
     }
 
-    UploadTask uploadBitmap(Bitmap bitmap, String prefix, String suffix,
-                            PhotoUploadedListener listener, boolean share) {
-        String filename = getTimestampedFileName(prefix, suffix);
-        StorageReference fileRef = getImagesStorageRef().child(filename);
-
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, baos);
-        byte[] data = baos.toByteArray();
-
-        FirebaseDatabase database = FirebaseDatabase.getInstance();
-        DatabaseReference myRef = database.getReference("links")
-                .child("images")
-                .child(filename.substring(0, filename.length() - 4));
-
-        // Attach metadata
-
-        myRef.addValueEventListener(new ValueEventListener() {
-            @Override
-            public void onDataChange(DataSnapshot dataSnapshot) {
-                if (dataSnapshot != null) {
-                    if (dataSnapshot.getValue() != null) {
-                        Uri shortUri = Uri.parse(dataSnapshot.getValue(String.class));
-                        Log.i(TAG, "Short URL generated! " + shortUri.toString());
-                        listener.onPhotoUploaded(shortUri);
-                        myRef.removeEventListener(this);
-                    }
+    /**
+     * @return the link printed for a share ID, which redirects to the photo once it is up.
+     */
+    public Uri getShareLink(String shareId) {
+        return Uri.parse(mShareBaseUrl + shareId);
+    }
+
+    /**
+     * Picks the share ID for an image: a new one, or the one it already has if the same image
+     * was uploaded before with the same encoder, in which case {@link #uploadBitmap} won't
+     * upload it again.  A new share ID is only remembered across restarts once
+     * {@link #uploadBitmap} has queued its upload, every claim must be followed by a call to it.
+     *
+     * @param role {@link #ROLE_ORIGINAL} or {@link #ROLE_STYLED}.
+     */
+    public String claimShareId(Bitmap bitmap, String role) {
+        long startMs = SystemClock.uptimeMillis();
+        String key = UploadIndex.getKey(bitmap, role, getEncoder(role));
+        String newShareId = ShareIds.mint();
+        String shareId = mUploadIndex.claim(key, newShareId);
+        Log.d(TAG, "Content key " + key + " in " + (SystemClock.uptimeMillis() - startMs) + "ms"
+                + (shareId.equals(newShareId) ? "" : ", duplicate of share " + shareId));
+        // Even a duplicate holds on to the claim until uploadBitmap, the first copy may yet fail.
+        synchronized (mClaims) {
+            List<String> keys = mClaims.get(shareId);
+            if (keys == null) {
+                keys = new ArrayList<>();
+                mClaims.put(shareId, keys);
+            }
+            keys.add(key);
+        }
+        return shareId;
+    }
+
+    /**
+     * Encodes a bitmap into a spool file on the calling thread and hands it to the upload queue,
+     * which keeps trying until it is uploaded.  The prefix picks the encoder, see
+     * {@link #setEncoder}.  The share ID, from {@link #claimShareId}, also ends the file name;
+     * if another copy of the image has already queued its upload only the listener is set up.
+     * A copy that finds the first one still encoding uploads as well, in case that one fails.
+     * The listener is called with the share link once the backend has mapped it to the upload,
+     * if that happens within {@link #LINK_TIMEOUT_MS}, the link itself can be printed straight
+     * away.
+     *
+     * An urgent image goes up twice under the same name: a small preview first, which gets the
+     * link mapped in a fraction of the time, then the full image replacing it.  Both are
+     * queued together once the full image is spooled, so a link never ends up stuck on its
+     * preview.
+     */
+    void uploadBitmap(Bitmap bitmap, String prefix, String shareId,
+                      PhotoUploadedListener listener, boolean share,
+                      UploadJob.Priority priority) {
+        long startMs = SystemClock.uptimeMillis();
+        String key = takeClaim(shareId);
+        boolean queued = false;
+        try {
+            if (key == null || !mUploadIndex.isPending(key)) {
+                Log.i(TAG, "Skipping upload, share " + shareId + " already has this image");
+                mLinkResolver.resolve(shareId, LINK_TIMEOUT_MS).thenAccept(
+                        url -> listener.onPhotoUploaded(getShareLink(shareId)));
+                return;
+            }
+            ImageEncoder encoder = getEncoder(prefix);
+            String filename = getTimestampedFileName(prefix, shareId, encoder.getExtension());
+
+            File previewFile = null;
+            if (priority == UploadJob.Priority.URGENT) {
+                Bitmap preview = createPreviewBitmap(bitmap);
+                previewFile = spool(mPreviewEncoder, preview, filename);
+                if (preview != bitmap) {
+                    preview.recycle();
                 }
             }
 
-            @Override
-            public void onCancelled(DatabaseError databaseError) {
+            // The function maps the ID to the object under /shares/<id> once the upload lands.
+            mLinkResolver.resolve(shareId, LINK_TIMEOUT_MS).whenComplete((url, e) -> {
+                if (e != null) {
+                    Log.w(TAG, "Share link " + shareId + " not live yet: " + e.getMessage());
+                    return;
+                }
+                long linkMs = SystemClock.uptimeMillis() - startMs;
+                synchronized (this) {
+                    mLinkCount++;
+                    mTotalLinkMs += linkMs;
+                }
+                Uri shareUri = getShareLink(shareId);
+                Log.i(TAG, "Share link live after " + linkMs + "ms! " + shareUri.toString());
+                listener.onPhotoUploaded(shareUri);
+            });
+
+            File spoolFile = spool(encoder, bitmap, filename);
+            if (spoolFile == null) {
+                // No preview either, the link must never end up on one for good.
+                if (previewFile != null && !previewFile.delete()) {
+                    Log.w(TAG, "Unable to delete " + previewFile);
+                }
+                return;
+            }
+            UploadJob full = new UploadJob(filename, spoolFile, encoder.getContentType(), share,
+                    shareId, priority, false);
+            if (previewFile != null) {
+                Log.d(TAG, "Queueing upload of preview and file: " + filename);
+                // Never tweeted, the full image is.
+                mUploadQueue.enqueue(new UploadJob(filename, previewFile,
+                        mPreviewEncoder.getContentType(), false, shareId, priority, true), full);
+            } else {
+                Log.d(TAG, "Queueing upload of file: " + filename);
+                mUploadQueue.enqueue(full);
             }
-        });
+            // Only now is the share ID sure to upload, a crash before this forgets the claim.
+            mUploadIndex.commit(key);
+            queued = true;
+        } finally {
+            if (key != null && !queued) {
+                // Let the next copy of the image try again.  Anything thrown goes on up.
+                mUploadIndex.release(key);
+            }
+        }
+    }
 
-        Log.d(TAG, "Uploading file: " + filename);
-        UploadTask uploadTask;
-        if (share) {
-            StorageMetadata metadata = new StorageMetadata.Builder()
-                    .setCustomMetadata("tweetme", "true")
-                    .build();
+    /**
+     * @return the content key of one of the share ID's claims not yet uploaded, or null if it
+     * has none.
+     */
+    private String takeClaim(String shareId) {
+        synchronized (mClaims) {
+            List<String> keys = mClaims.get(shareId);
+            if (keys == null) {
+                return null;
+            }
+            String key = keys.remove(keys.size() - 1);
+            if (keys.isEmpty()) {
+                mClaims.remove(shareId);
+            }
+            return key;
+        }
+    }
 
-            fileRef.updateMetadata(metadata);
-            uploadTask = fileRef.putBytes(data, metadata);
-        } else {
-            uploadTask = fileRef.putBytes(data);
+    /**
+     * Encodes a bitmap into a new spool file.
+     *
+     * @return the file, or null if it couldn't be written.
+     */
+    private File spool(ImageEncoder encoder, Bitmap bitmap, String filename) {
+        File spoolFile = null;
+        try {
+            spoolFile = mUploadQueue.createSpoolFile(encoder.getExtension());
+            // Streamed to disk, the encoded image is never held in memory whole.
+            if (!encoder.encode(bitmap, new BufferedOutputStream(
+                    new FileOutputStream(spoolFile)))) {
+                throw new IOException("Unable to encode " + filename);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to spool " + filename, e);
+            if (spoolFile != null && !spoolFile.delete()) {
+                Log.w(TAG, "Unable to delete " + spoolFile);
+            }
+            return null;
         }
+        return spoolFile;
+    }
 
-        uploadTask.addOnFailureListener(e -> Log.d(TAG, "Upload Task Failed."));
-        return uploadTask;
+    /**
+     * @return the bitmap scaled down to fit {@link #PREVIEW_MAX_SIZE}, or itself if it does.
+     */
+    private static Bitmap createPreviewBitmap(Bitmap bitmap) {
+        float scale = PREVIEW_MAX_SIZE / (float) Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (scale >= 1) {
+            return bitmap;
+        }
+        return Bitmap.createScaledBitmap(bitmap, Math.round(bitmap.getWidth() * scale),
+                Math.round(bitmap.getHeight() * scale), true);
+    }
+
+    private synchronized void onUploaded(UploadJob job) {
+        // Only urgent images have previews, their full upload is the one to compare.
+        if (!job.isPreview() && job.getPriority() == UploadJob.Priority.URGENT) {
+            mFullCount++;
+            mTotalFullMs += job.getQueuedMs();
+        }
     }
 
-    void uploadBitmaps(Bitmap original, Bitmap styled,
-                       PhotoUploadedListener origListener, PhotoUploadedListener styledListener,
-                       boolean shareOnSocialMedia) {
+    /**
+     * @param originalShareId The share ID printed for the original, see {@link #claimShareId}.
+     * @param styledShareId   The share ID printed for the styled image, unused without one.
+     * @return completes once both bitmaps are encoded into the spool, when they can be recycled.
+     */
+    CompletableFuture<Void> uploadBitmaps(Bitmap original, Bitmap styled, String originalShareId,
+                                          String styledShareId,
+                                          PhotoUploadedListener origListener,
+                                          PhotoUploadedListener styledListener,
+                                          boolean shareOnSocialMedia) {
 
         // Even if user elects for sharing on social media, we don't want to spam the feed
         // with two images for each person.  When there's a styled image, never share the original.
-        uploadBitmap(original, "original", null, origListener,
-                styled == null && shareOnSocialMedia);
-        if (styled != null) {
-            uploadBitmap(styled, "styled", null, styledListener, shareOnSocialMedia);
+        // Only the shared image is urgent, an original next to it waits until between sessions.
+        // Both are encoded into the spool on the pool.
+        UploadJob.Priority originalPriority = styled == null
+                ? UploadJob.Priority.URGENT : UploadJob.Priority.DEFERRED;
+        CompletableFuture<Void> originalEncoded = CompletableFuture.runAsync(
+                () -> uploadBitmap(original, ROLE_ORIGINAL, originalShareId, origListener,
+                        styled == null && shareOnSocialMedia, originalPriority), mEncodeExecutor);
+        if (styled == null) {
+            return originalEncoded;
         }
-    }
-
-    UploadTask signInAndUploadBitmap(Bitmap bitmap, String prefix, String suffix, boolean share) {
-        UploadTask uploadTask = (UploadTask) mAuth.signInAnonymously()
-                .continueWithTask(task -> {
-                    // If task failed, this will throw an Exception and cause the whole task
-                    // chain to fail (which is good)
-                    AuthResult result = task.getResult();
-                    // Otherwise, do the storage thing
-                    return uploadBitmap(bitmap, prefix, suffix, null, share);
-                }).addOnSuccessListener(result -> {
-                    // Auth and upload succeeded
-                    Log.d(TAG, "Both Auth and upload succeeded, hooray!");
-                }).addOnFailureListener(e -> {
-                    // Either auth or upload failed, can check exception subclass if we care which one
-                    Log.d(TAG, "There was an error uploading the image!", e);
-                }).getResult().getTask();
-        return uploadTask;
+        CompletableFuture<Void> styledEncoded = CompletableFuture.runAsync(
+                () -> uploadBitmap(styled, ROLE_STYLED, styledShareId, styledListener,
+                        shareOnSocialMedia, UploadJob.Priority.URGENT), mEncodeExecutor);
+        return CompletableFuture.allOf(originalEncoded, styledEncoded);
     }
 
     void onStart() {
@@ -211,6 +386,29 @@ public class FirebaseStorageAdapter {
         }
     }
 
+    void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Upload encoders:");
+        mOriginalEncoder.dump(prefix + "  ", writer);
+        mStyledEncoder.dump(prefix + "  ", writer);
+        mPreviewEncoder.dump(prefix + "  ", writer);
+        synchronized (this) {
+            writer.print(prefix);
+            writer.print(mLinkCount + " links live");
+            if (mLinkCount > 0) {
+                writer.print(", avg " + (mTotalLinkMs / mLinkCount) + "ms");
+            }
+            writer.print("; " + mFullCount + " full uploads");
+            if (mFullCount > 0) {
+                writer.print(", avg " + (mTotalFullMs / mFullCount) + "ms");
+            }
+            writer.println();
+        }
+        mUploadQueue.dump(prefix, writer);
+        mUploadIndex.dump(prefix, writer);
+        mLinkResolver.dump(prefix, writer);
+    }
+
     private boolean isUserSignedIn() {
         return mAuth.getCurrentUser() != null;
     }
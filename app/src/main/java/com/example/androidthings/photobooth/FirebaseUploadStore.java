@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.net.Uri;
+
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+import com.google.firebase.storage.UploadTask;
+
+/**
+ * Uploads spool files to a Firebase Storage directory.
+ */
+public class FirebaseUploadStore implements UploadStore {
+
+    private final StorageReference mDirectory;
+
+    public FirebaseUploadStore(StorageReference directory) {
+        mDirectory = directory;
+    }
+
+    @Override
+    public Upload upload(UploadJob job, Callback callback) {
+        StorageMetadata.Builder metadata = new StorageMetadata.Builder()
+                .setContentType(job.getContentType());
+        if (job.isShared()) {
+            metadata.setCustomMetadata("tweetme", "true");
+        }
+        if (job.getShareId() != null) {
+            // Tells the function which printed link to point at this object.
+            metadata.setCustomMetadata("shareid", job.getShareId());
+        }
+        if (job.isPreview()) {
+            // Starts the link but isn't tweeted, the full image that replaces it is.
+            metadata.setCustomMetadata("preview", "true");
+        }
+        // Read from the file a chunk at a time, the encoded image is never in memory whole.
+        UploadTask task = mDirectory.child(job.getName())
+                .putFile(Uri.fromFile(job.getFile()), metadata.build());
+        task.addOnSuccessListener(result -> callback.onUploaded(job))
+                .addOnFailureListener(e -> callback.onFailed(job, e));
+        // A resumable upload session, pausing keeps the bytes already sent.
+        return new Upload() {
+            @Override
+            public void pause() {
+                task.pause();
+            }
+
+            @Override
+            public void resume() {
+                task.resume();
+            }
+        };
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.hardware.camera2.CameraCharacteristics;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * Records where a preview frame spends its time between the sensor and the screen.
+ *
+ * Every stage is measured against the frame's sensor timestamp, read with the same clock the
+ * camera uses, and recorded into its own {@link LatencyHistogram}.  Recording allocates nothing
+ * and takes no locks, so this stays on in production; {@link #dump(String, PrintWriter)} is
+ * wired to {@code adb shell dumpsys activity}.
+ */
+public class FrameLatencyTracer {
+
+    public enum Stage {
+        /** Sensor exposure to {@code onImageAvailable}. */
+        SENSOR_TO_LISTENER,
+        /** YUV to ARGB conversion. */
+        CONVERT,
+        /** Center crop, rescale and rotation. */
+        CROP,
+        /** Handed to the presenter until the vsync it was shown on. */
+        PRESENT_WAIT,
+        /** Sensor exposure to shown on screen. */
+        SENSOR_TO_DISPLAY
+    }
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[Stage.values().length];
+    private volatile boolean mRealtimeTimestamps = false;
+
+    public FrameLatencyTracer() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param timestampSource The camera's {@code SENSOR_INFO_TIMESTAMP_SOURCE}.
+     */
+    public void setTimestampSource(Integer timestampSource) {
+        mRealtimeTimestamps = timestampSource != null
+                && timestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+    }
+
+    /**
+     * @return the current time in the sensor timestamp's time base.  For an UNKNOWN timestamp
+     * source the camera HAL almost always uses CLOCK_MONOTONIC, which is what
+     * {@link System#nanoTime()} reads.
+     */
+    public long now() {
+        return mRealtimeTimestamps ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+    }
+
+    public void record(Stage stage, long nanos) {
+        mHistograms[stage.ordinal()].recordNanos(nanos);
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Preview frame latency (us), timestamps "
+                + (mRealtimeTimestamps ? "REALTIME" : "MONOTONIC") + ":");
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = mHistograms[stage.ordinal()];
+            writer.print(prefix);
+            writer.println(String.format("  %-18s n=%-7d p50=%-8d p95=%-8d p99=%d",
+                    stage.name(),
+                    histogram.getCount(),
+                    histogram.getPercentileMicros(50),
+                    histogram.getPercentileMicros(95),
+                    histogram.getPercentileMicros(99)));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.graphics.Bitmap;
+
+import java.util.Arrays;
+
+/**
+ * Reads a bitmap as grayscale rows of a different size, one output row per call.
+ *
+ * Both axes are scaled to the requested size, the aspect ratio is not kept.  Each output pixel
+ * is the average of the source pixels it covers (nearest source pixel when enlarging), and only
+ * a single source row is held in memory at a time, so a full-size photo can be streamed to the
+ * printer without a scaled copy.
+ */
+public class GrayscaleRowScaler {
+
+    private final Bitmap mSource;
+    private final int mSourceWidth;
+    private final int mSourceHeight;
+    private final int mWidth;
+    private final int mHeight;
+
+    private final int[] mSourceRow;
+    private final int[] mSums;
+    private final int[] mCounts;
+    // First source column feeding each output column.  One extra entry marks the end.
+    private final int[] mColumnStarts;
+
+    private int mNextRow = 0;
+
+    public GrayscaleRowScaler(Bitmap source, int width, int height) {
+        mSource = source;
+        mSourceWidth = source.getWidth();
+        mSourceHeight = source.getHeight();
+        mWidth = width;
+        mHeight = height;
+
+        mSourceRow = new int[mSourceWidth];
+        mSums = new int[width];
+        mCounts = new int[width];
+        mColumnStarts = new int[width + 1];
+        for (int x = 0; x <= width; x++) {
+            mColumnStarts[x] = (int) ((long) x * mSourceWidth / width);
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public boolean hasNextRow() {
+        return mNextRow < mHeight;
+    }
+
+    /**
+     * Produces the next output row.
+     *
+     * @param gray Receives {@link #getWidth()} luminance values, 0 black to 255 white.
+     */
+    public void nextRow(int[] gray) {
+        int y = mNextRow++;
+        int sourceTop = (int) ((long) y * mSourceHeight / mHeight);
+        int sourceBottom = Math.max(sourceTop + 1,
+                (int) ((long) (y + 1) * mSourceHeight / mHeight));
+
+        Arrays.fill(mSums, 0);
+        Arrays.fill(mCounts, 0);
+        for (int sy = sourceTop; sy < sourceBottom; sy++) {
+            mSource.getPixels(mSourceRow, 0, mSourceWidth, 0, sy, mSourceWidth, 1);
+            for (int x = 0; x < mWidth; x++) {
+                int start = mColumnStarts[x];
+                int end = Math.max(start + 1, mColumnStarts[x + 1]);
+                for (int sx = start; sx < end; sx++) {
+                    mSums[x] += PrintDitherer.luminance(mSourceRow[sx]);
+                }
+                mCounts[x] += end - start;
+            }
+        }
+        for (int x = 0; x < mWidth; x++) {
+            gray[x] = mSums[x] / mCounts[x];
+        }
+    }
+}
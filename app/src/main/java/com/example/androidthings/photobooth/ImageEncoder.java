@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+/**
+ * Compresses a bitmap for upload in one format and quality, and keeps count of how long that
+ * takes and how big the result is.
+ *
+ * PNG at 100 is lossless, slow and several hundred KB for a photo.  JPEG or WebP at 80-90 is a
+ * fraction of both, which matters more than the last bit of quality on conference Wi-Fi.
+ */
+public class ImageEncoder {
+
+    private static final String TAG = "ImageEncoder";
+
+    private final String mRole;
+    private final CompressFormat mFormat;
+    private final int mQuality;
+
+    private int mCount = 0;
+    private long mTotalNanos = 0;
+    private long mTotalBytes = 0;
+
+    /**
+     * @param role    What the encoder is for, e.g. "original", only used for logging.
+     * @param quality 0-100, ignored by PNG.
+     */
+    public ImageEncoder(String role, CompressFormat format, int quality) {
+        mRole = role;
+        mFormat = format;
+        mQuality = quality;
+    }
+
+    /**
+     * @return the file extension for the format, without the dot.
+     */
+    public String getExtension() {
+        switch (mFormat) {
+            case JPEG:
+                return "jpg";
+            case WEBP:
+                return "webp";
+            default:
+                return "png";
+        }
+    }
+
+    public String getContentType() {
+        switch (mFormat) {
+            case JPEG:
+                return "image/jpeg";
+            case WEBP:
+                return "image/webp";
+            default:
+                return "image/png";
+        }
+    }
+
+    /**
+     * Compresses straight into {@code out}, e.g. a spool file an upload will read, and closes
+     * it.
+     *
+     * @return false if the bitmap couldn't be compressed or written, anything written so far
+     * should be thrown away.
+     */
+    public boolean encode(Bitmap bitmap, OutputStream out) {
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        CountingOutputStream counter = new CountingOutputStream(out);
+        boolean compressed;
+        try {
+            compressed = bitmap.compress(mFormat, mQuality, counter);
+            counter.close();
+        } catch (IOException e) {
+            // Bitmap.compress() swallows write errors itself, this is only the close.
+            Log.w(TAG, mRole + ": unable to finish writing", e);
+            compressed = false;
+        }
+        if (counter.mError != null) {
+            Log.w(TAG, mRole + ": write failed", counter.mError);
+            compressed = false;
+        }
+        long elapsedNs = SystemClock.elapsedRealtimeNanos() - startNs;
+        if (!compressed) {
+            return false;
+        }
+        Log.d(TAG, mRole + ": " + bitmap.getWidth() + "x" + bitmap.getHeight() + " as " + this
+                + " in " + (elapsedNs / 1000000) + "ms, " + (counter.mCount / 1024) + "KB");
+        synchronized (this) {
+            mCount++;
+            mTotalNanos += elapsedNs;
+            mTotalBytes += counter.mCount;
+        }
+        return true;
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print(mRole + " " + this + ": " + mCount + " encoded");
+        if (mCount > 0) {
+            writer.print(", avg " + (mTotalNanos / mCount / 1000000) + "ms, "
+                    + (mTotalBytes / mCount / 1024) + "KB");
+        }
+        writer.println();
+    }
+
+    @Override
+    public String toString() {
+        return mFormat + "@" + mQuality;
+    }
+
+    /**
+     * Counts what goes through, and remembers the first write error, which
+     * {@link Bitmap#compress} would otherwise only report as a false return.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long mCount = 0;
+        IOException mError;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                mError = mError == null ? e : mError;
+                throw e;
+            }
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                mError = mError == null ? e : mError;
+                throw e;
+            }
+            mCount += len;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Stand-in for Firebase Storage that keeps uploads in memory, with a switch to take it
+ * "offline" so retries and backoff can be watched without touching the network.
+ */
+public class InMemoryUploadStore implements UploadStore {
+
+    private static final String TAG = "InMemoryUploadStore";
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final Map<String, byte[]> mObjects = new HashMap<>();
+    private final long mLatencyMs;
+    private volatile boolean mOnline = true;
+
+    public InMemoryUploadStore() {
+        this(500);
+    }
+
+    /**
+     * @param latencyMs How long each upload takes, whether it succeeds or not.
+     */
+    public InMemoryUploadStore(long latencyMs) {
+        mLatencyMs = latencyMs;
+    }
+
+    /**
+     * While offline every upload fails after the usual latency.
+     */
+    public void setOnline(boolean online) {
+        Log.i(TAG, online ? "Going online" : "Going offline");
+        mOnline = online;
+    }
+
+    @Override
+    public Upload upload(UploadJob job, Callback callback) {
+        SimulatedUpload upload = new SimulatedUpload();
+        mExecutor.execute(() -> {
+            try {
+                upload.waitForLatency(mLatencyMs);
+                if (!mOnline) {
+                    throw new IOException("Store is offline");
+                }
+                byte[] data = readFile(job.getFile());
+                synchronized (mObjects) {
+                    mObjects.put(job.getName(), data);
+                }
+            } catch (IOException | InterruptedException e) {
+                callback.onFailed(job, e);
+                return;
+            }
+            callback.onUploaded(job);
+        });
+        return upload;
+    }
+
+    /**
+     * Takes the store's latency to "send", the clock stopped while paused.
+     */
+    private static class SimulatedUpload implements Upload {
+        private boolean mPaused = false;
+
+        synchronized void waitForLatency(long latencyMs) throws InterruptedException {
+            long remainingMs = latencyMs;
+            while (remainingMs > 0 || mPaused) {
+                if (mPaused) {
+                    wait();
+                    continue;
+                }
+                long startMs = SystemClock.uptimeMillis();
+                wait(remainingMs);
+                remainingMs -= SystemClock.uptimeMillis() - startMs;
+            }
+        }
+
+        @Override
+        public synchronized void pause() {
+            mPaused = true;
+        }
+
+        @Override
+        public synchronized void resume() {
+            mPaused = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the bytes uploaded under {@code name}, or null.
+     */
+    public byte[] get(String name) {
+        synchronized (mObjects) {
+            return mObjects.get(name);
+        }
+    }
+
+    public int size() {
+        synchronized (mObjects) {
+            return mObjects.size();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("Spool file shrank: " + file);
+                }
+                offset += read;
+            }
+        }
+        return data;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import java.util.Arrays;
+
+/**
+ * A one bit per pixel image, the format the thermal printer takes.
+ *
+ * Rows are packed most significant bit first, a set bit meaning "burn this dot", the same as
+ * {@link PrintDitherer} produces and {@link EscPosRasterEncoder#encodePackedBand} consumes.  A
+ * 384 dot wide strip takes 48 bytes per row, a 32nd of an ARGB_8888 bitmap of the same size.
+ */
+public class MonoBitmap {
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRowBytes;
+    private final byte[] mData;
+
+    public MonoBitmap(int width, int height) {
+        this(width, height, new byte[((width + 7) / 8) * height]);
+    }
+
+    private MonoBitmap(int width, int height, byte[] data) {
+        mWidth = width;
+        mHeight = height;
+        mRowBytes = (width + 7) / 8;
+        mData = data;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getRowBytes() {
+        return mRowBytes;
+    }
+
+    /**
+     * @return the packed rows, {@link #getRowBytes()} per row.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public boolean get(int x, int y) {
+        return (mData[y * mRowBytes + (x >> 3)] & (0x80 >>> (x & 7))) != 0;
+    }
+
+    public MonoBitmap copy() {
+        return new MonoBitmap(mWidth, mHeight, mData.clone());
+    }
+
+    /**
+     * Sets every dot in the rectangle, clipped to the image.
+     */
+    public void fillRect(int left, int top, int right, int bottom) {
+        left = Math.max(0, left);
+        right = Math.min(mWidth, right);
+        top = Math.max(0, top);
+        bottom = Math.min(mHeight, bottom);
+        if (left >= right) {
+            return;
+        }
+        for (int y = top; y < bottom; y++) {
+            int rowOffset = y * mRowBytes;
+            for (int x = left; x < right; ) {
+                int bit = x & 7;
+                int count = Math.min(8 - bit, right - x);
+                mData[rowOffset + (x >> 3)] |= (byte) ((0xff >>> bit) & ~(0xff >>> (bit + count)));
+                x += count;
+            }
+        }
+    }
+
+    /**
+     * Clears the rectangle to white, clipped to the image.
+     */
+    public void clearRect(int left, int top, int right, int bottom) {
+        left = Math.max(0, left);
+        right = Math.min(mWidth, right);
+        top = Math.max(0, top);
+        bottom = Math.min(mHeight, bottom);
+        if (left >= right) {
+            return;
+        }
+        for (int y = top; y < bottom; y++) {
+            int rowOffset = y * mRowBytes;
+            for (int x = left; x < right; ) {
+                int bit = x & 7;
+                int count = Math.min(8 - bit, right - x);
+                mData[rowOffset + (x >> 3)] &= (byte) ~((0xff >>> bit) & ~(0xff >>> (bit + count)));
+                x += count;
+            }
+        }
+    }
+
+    /**
+     * ORs a packed row into row {@code y}, starting at dot {@code x}, clipped to the image.
+     *
+     * @param row    Packed dots, most significant bit first.
+     * @param offset Offset of the row in {@code row}.
+     * @param width  Dots in the row.
+     */
+    public void drawRow(byte[] row, int offset, int width, int x, int y) {
+        if (y < 0 || y >= mHeight) {
+            return;
+        }
+        int rowOffset = y * mRowBytes;
+        int end = Math.min(width, mWidth - x);
+        int shift = x & 7;
+        if (x >= 0 && shift == 0) {
+            // Byte aligned, the common case for strips laid out on 8 dot boundaries.
+            int bytes = (end + 7) / 8;
+            int lastMask = 0xff << (bytes * 8 - end);
+            for (int i = 0; i < bytes; i++) {
+                int bits = row[offset + i] & 0xff;
+                if (i == bytes - 1) {
+                    bits &= lastMask;
+                }
+                mData[rowOffset + (x >> 3) + i] |= (byte) bits;
+            }
+            return;
+        }
+        for (int i = Math.max(0, -x); i < end; i++) {
+            if ((row[offset + (i >> 3)] & (0x80 >>> (i & 7))) != 0) {
+                int dot = x + i;
+                mData[rowOffset + (dot >> 3)] |= (byte) (0x80 >>> (dot & 7));
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(mData, (byte) 0);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders a one bit per dot photo strip a band at a time, top to bottom.
+ *
+ * Nothing the size of the strip is ever allocated: each band is composited from the cached
+ * template, the photos, scaled and dithered a row at a time as the band reaches them, and small
+ * pre-rendered stamps for the QR codes and labels.  The strip is drawn twice side by side, to be
+ * cut in half after printing.  Made by {@link PhotoStripBuilder#openMonoStrip}.
+ */
+public class MonoStripRenderer {
+
+    private static class Photo {
+        final int left;
+        final int top;
+        final int height;
+        final GrayscaleRowScaler scaler;
+        final PrintDitherer ditherer;
+        final int[] gray;
+        final byte[] row;
+
+        Photo(Bitmap bitmap, int left, int top, int width, int height) {
+            this.left = left;
+            this.top = top;
+            this.height = height;
+            scaler = new GrayscaleRowScaler(bitmap, width, height);
+            ditherer = new PrintDitherer(PrintDitherer.Mode.FLOYD_STEINBERG, width);
+            gray = new int[width];
+            row = new byte[ditherer.getRowBytes()];
+        }
+    }
+
+    private static class Stamp {
+        final MonoBitmap bits;
+        final int left;
+        final int top;
+
+        Stamp(MonoBitmap bits, int left, int top) {
+            this.bits = bits;
+            this.left = left;
+            this.top = top;
+        }
+    }
+
+    private final MonoBitmap mTemplate;
+    private final int mStripWidth;
+    private final List<Photo> mPhotos = new ArrayList<>();
+    private final List<Stamp> mStamps = new ArrayList<>();
+
+    // One row of a single strip, and the band handed out, both strips side by side.
+    private final MonoBitmap mRow;
+    private final MonoBitmap mBand;
+    private int mNextRow = 0;
+
+    /**
+     * @param template Background of a single strip, also sets its size.  Only read.
+     */
+    MonoStripRenderer(MonoBitmap template) {
+        mTemplate = template;
+        mStripWidth = template.getWidth();
+        mRow = new MonoBitmap(mStripWidth, 1);
+        mBand = new MonoBitmap(mStripWidth * 2, EscPosRasterEncoder.BAND_HEIGHT);
+    }
+
+    /**
+     * Places a photo, stretched to {@code width} by {@code height} and dithered.  It is read a
+     * row at a time while rendering, so it must not be recycled before the last band.
+     */
+    void addPhoto(Bitmap bitmap, int left, int top, int width, int height) {
+        mPhotos.add(new Photo(bitmap, left, top, width, height));
+    }
+
+    /**
+     * ORs an already rendered piece, such as a QR code, into the strip.
+     */
+    void addStamp(MonoBitmap bits, int left, int top) {
+        mStamps.add(new Stamp(bits, left, top));
+    }
+
+    /**
+     * @return width of the output, both strips.
+     */
+    public int getWidth() {
+        return mBand.getWidth();
+    }
+
+    public int getHeight() {
+        return mTemplate.getHeight();
+    }
+
+    public boolean hasNextBand() {
+        return mNextRow < getHeight();
+    }
+
+    /**
+     * Renders the next band into {@link #getBand()}.
+     *
+     * @return rows rendered, {@link EscPosRasterEncoder#BAND_HEIGHT} except for the last band.
+     */
+    public int nextBand() {
+        mBand.clear();
+        int rows = Math.min(EscPosRasterEncoder.BAND_HEIGHT, getHeight() - mNextRow);
+        for (int r = 0; r < rows; r++) {
+            renderRow(mNextRow++);
+            mBand.drawRow(mRow.getData(), 0, mStripWidth, 0, r);
+            mBand.drawRow(mRow.getData(), 0, mStripWidth, mStripWidth, r);
+        }
+        return rows;
+    }
+
+    /**
+     * @return the band last rendered by {@link #nextBand()}, reused for every band.
+     */
+    public MonoBitmap getBand() {
+        return mBand;
+    }
+
+    private void renderRow(int y) {
+        mRow.clear();
+        mRow.drawRow(mTemplate.getData(), y * mTemplate.getRowBytes(), mStripWidth, 0, 0);
+        for (Photo photo : mPhotos) {
+            // Rows are visited in order, so each photo is scaled and dithered exactly once.
+            int photoRow = y - photo.top;
+            if (photoRow >= 0 && photoRow < photo.height && photo.scaler.hasNextRow()) {
+                photo.scaler.nextRow(photo.gray);
+                photo.ditherer.ditherRow(photo.gray, photoRow, photo.row, 0);
+                mRow.drawRow(photo.row, 0, photo.scaler.getWidth(), photo.left, 0);
+            }
+        }
+        for (Stamp stamp : mStamps) {
+            int stampRow = y - stamp.top;
+            if (stampRow >= 0 && stampRow < stamp.bits.getHeight()) {
+                mRow.drawRow(stamp.bits.getData(), stampRow * stamp.bits.getRowBytes(),
+                        stamp.bits.getWidth(), stamp.left, 0);
+            }
+        }
+    }
+}
@@ -25,152 +25,336 @@ import android.graphics.Paint.Align;
 import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.EncodeHintType;
-import com.google.zxing.WriterException;
 import com.google.zxing.common.BitMatrix;
-import com.google.zxing.qrcode.QRCodeWriter;
-import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
 
 public class PhotoStripBuilder {
 
     private static final String TAG = "PhotoStripBuilder";
-    private static final int MARGIN = 16;
 
-    private static final int WIDTH = 480 + MARGIN * 2;
-    private static final int WIDTH_HALF = WIDTH / 2;
+    // Which of the two photos, and their links, an element of the layout is for.
+    public static final int SLOT_ORIGINAL = 0;
+    public static final int SLOT_STYLIZED = 1;
 
     private Drawable mIoLogo;
+    private StripLayout mLayout;
+    // mLayout scaled to the width of the last mono strip.
+    private StripLayout mMonoLayout;
 
+    // Everything that is the same on every strip, the background and the logo, drawn once.
+    private Bitmap mTemplate;
+    private MonoBitmap mMonoTemplate;
+    private final Paint mPaint = new Paint();
+    private final Rect mLogoRect = new Rect();
+
+    /**
+     * Uses the layout named by {@code R.string.strip_layout}, from the app's assets.
+     */
     public PhotoStripBuilder(Context context) {
         mIoLogo = context.getDrawable(R.drawable.ic_googleio17);
+        String layoutPath = context.getString(R.string.strip_layout);
+        try {
+            mLayout = StripLayout.fromAsset(context, layoutPath);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to load strip layout " + layoutPath, e);
+        }
+        Log.d(TAG, "Using strip layout " + mLayout.getName());
+        mPaint.setFlags(mPaint.getFlags() | Paint.ANTI_ALIAS_FLAG | Paint.SUBPIXEL_TEXT_FLAG);
+        mPaint.setColor(0xff212121); // 87% black
+        mPaint.setTextAlign(Align.LEFT);
+        mPaint.setTypeface(Typeface.MONOSPACE);
     }
 
-    private static Bitmap createQrCode(String data, int size) {
-        if (data == null) {
-            return null;
+    /**
+     * Replaces the logo drawn under the photos.
+     */
+    public synchronized void setLogo(Drawable logo) {
+        mIoLogo = logo;
+        invalidateTemplate();
+    }
+
+    /**
+     * Switches to another layout, from the next strip on.
+     */
+    public synchronized void setLayout(StripLayout layout) {
+        mLayout = layout;
+        invalidateTemplate();
+    }
+
+    public synchronized StripLayout getLayout() {
+        return mLayout;
+    }
+
+    /**
+     * Drops the cached background and logo, they are drawn again for the next strip.  Needed
+     * whenever something they depend on changes.
+     */
+    public synchronized void invalidateTemplate() {
+        if (mTemplate != null) {
+            mTemplate.recycle();
+            mTemplate = null;
         }
-        Map<EncodeHintType, ErrorCorrectionLevel> hintMap = new HashMap<>();
-        hintMap.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.H); // H = 30% damage
+        mMonoTemplate = null;
+        mMonoLayout = null;
+    }
 
-        QRCodeWriter writer = new QRCodeWriter();
-        BitMatrix bitMatrix;
-        try {
-            bitMatrix = writer.encode(data, BarcodeFormat.QR_CODE, size, size, hintMap);
-        } catch (WriterException e) {
-            Log.e(TAG, "createQrCode failed", e);
-            return null;
+    private Bitmap getTemplate() {
+        if (mTemplate == null) {
+            long startMs = SystemClock.uptimeMillis();
+            mTemplate = Bitmap.createBitmap(mLayout.getWidth(), mLayout.getHeight(),
+                    Config.ARGB_8888);
+            Canvas canvas = new Canvas(mTemplate);
+            canvas.drawColor(Color.WHITE); // TODO: only needed for preview
+            drawTemplate(canvas);
+            Log.d(TAG, "Strip template rendered in " + (SystemClock.uptimeMillis() - startMs)
+                    + "ms");
         }
-        int width = bitMatrix.getWidth();
-        int height = bitMatrix.getHeight();
-        int[] pixels = new int[width * height];
-        for (int y = 0; y < height; y++) {
-            int offset = y * width;
-            for (int x = 0; x < width; x++) {
-                pixels[offset + x] = bitMatrix.get(x, y) ? Color.BLACK : Color.WHITE;
+        return mTemplate;
+    }
+
+    /**
+     * @return the layout at {@code width}, for drawing one bit per dot.
+     */
+    private StripLayout getMonoLayout(int width) {
+        if (mMonoLayout == null || mMonoLayout.getWidth() != width) {
+            mMonoLayout = mLayout.scaleToWidth(width);
+        }
+        return mMonoLayout;
+    }
+
+    /**
+     * @return the template dithered to one bit per dot at {@code width}.  Drawn small in the
+     * first place, the full size template is never scaled down.
+     */
+    private MonoBitmap getMonoTemplate(int width) {
+        if (mMonoTemplate == null || mMonoTemplate.getWidth() != width) {
+            int height = getMonoLayout(width).getHeight();
+            Bitmap small = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+            Canvas canvas = new Canvas(small);
+            canvas.drawColor(Color.WHITE);
+            canvas.scale(width / (float) mLayout.getWidth(), width / (float) mLayout.getWidth());
+            drawTemplate(canvas);
+
+            MonoBitmap mono = new MonoBitmap(width, height);
+            PrintDitherer ditherer = new PrintDitherer(PrintDitherer.Mode.FLOYD_STEINBERG, width);
+            int[] pixels = new int[width];
+            byte[] row = new byte[ditherer.getRowBytes()];
+            for (int y = 0; y < height; y++) {
+                small.getPixels(pixels, 0, width, 0, y, width, 1);
+                for (int x = 0; x < width; x++) {
+                    pixels[x] = PrintDitherer.luminance(pixels[x]);
+                }
+                ditherer.ditherRow(pixels, y, row, 0);
+                mono.drawRow(row, 0, width, 0, y);
             }
+            small.recycle();
+            mMonoTemplate = mono;
         }
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Config.RGB_565);
-        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
-        return bitmap;
+        return mMonoTemplate;
     }
 
+    /**
+     * Renders the strip twice side by side, to be cut in half after printing.  The strip is
+     * only drawn once, the copy is a straight blit of the finished pixels.
+     */
     public Bitmap createPhotoStrip(PhotoStripSpec spec) {
-        // This is the photo strip
-        Bitmap out = Bitmap.createBitmap(WIDTH * 2, WIDTH * 3, Config.ARGB_8888);
+        return createPhotoStrip(spec, Config.ARGB_8888);
+    }
+
+    /**
+     * Same as {@link #createPhotoStrip(PhotoStripSpec)}, in {@code config}.  RGB_565 takes half
+     * the memory and is plenty for a strip that ends up as a PNG or on paper.
+     */
+    public Bitmap createPhotoStrip(PhotoStripSpec spec, Config config) {
+        long startMs = SystemClock.uptimeMillis();
+        Bitmap strip = createSingleStrip(spec, config);
+        long renderedMs = SystemClock.uptimeMillis();
+
+        Bitmap out = Bitmap.createBitmap(strip.getWidth() * 2, strip.getHeight(), config);
         Canvas canvas = new Canvas(out);
-        Paint paint = new Paint();
-        paint.setFlags(paint.getFlags() | Paint.ANTI_ALIAS_FLAG | Paint.SUBPIXEL_TEXT_FLAG);
-        paint.setColor(0xff212121); // 87% black
-        paint.setTextAlign(Align.LEFT);
-        canvas.drawColor(Color.WHITE); // TODO: only needed for preview
-
-        // draw the strip
-        int saveCount = canvas.save();
-        drawSpec(spec, canvas, paint);
-        canvas.restoreToCount(saveCount);
-
-        // draw the strip again
-        saveCount = canvas.save();
-        canvas.translate(WIDTH, 0);
-        drawSpec(spec, canvas, paint);
-        canvas.restoreToCount(saveCount);
+        // No paint: same config, no scaling, so both draws are plain pixel copies.
+        canvas.drawBitmap(strip, 0, 0, null);
+        canvas.drawBitmap(strip, strip.getWidth(), 0, null);
+        strip.recycle();
 
+        Log.d(TAG, "Photo strip rendered in " + (renderedMs - startMs) + "ms, copied in "
+                + (SystemClock.uptimeMillis() - renderedMs) + "ms");
         return out;
     }
 
+    /**
+     * Renders a single strip, as wide as the layout, on a copy of the cached template.
+     */
+    public Bitmap createSingleStrip(PhotoStripSpec spec) {
+        return createSingleStrip(spec, Config.ARGB_8888);
+    }
+
+    public synchronized Bitmap createSingleStrip(PhotoStripSpec spec, Config config) {
+        Bitmap out = getTemplate().copy(config, true);
+        Canvas canvas = new Canvas(out);
+        drawSpec(spec, canvas, mPaint);
+        return out;
+    }
+
+    /**
+     * Renders the side by side strips straight to one bit per dot, for the thermal printer, a
+     * band at a time as the caller asks for them.  Photos are scaled and dithered into the strip
+     * row by row, QR codes are drawn from their matrix and labels are thresholded, so no full
+     * colour copy of the strip is ever made.  The spec's photos are read while rendering, they
+     * must outlive the renderer.
+     *
+     * @param dotWidth Width of the output, both strips together.
+     */
+    public synchronized MonoStripRenderer openMonoStrip(PhotoStripSpec spec, int dotWidth) {
+        int width = dotWidth / 2;
+        MonoStripRenderer renderer = new MonoStripRenderer(getMonoTemplate(width));
+        for (StripLayout.Op op : getMonoLayout(width).getOps()) {
+            switch (op.type) {
+                case PHOTO:
+                    renderer.addPhoto(spec.getImage(op.slot), op.rect.left, op.rect.top,
+                            op.rect.width(), op.rect.height());
+                    break;
+                case QR_CODE:
+                case LABEL:
+                    addMonoLink(renderer, op, spec.getLink(op.slot));
+                    break;
+            }
+        }
+        return renderer;
+    }
+
+    /**
+     * Draws the parts of the strip that don't change between sessions.
+     */
+    private void drawTemplate(Canvas canvas) {
+        for (StripLayout.Op op : mLayout.getOps()) {
+            if (op.isStatic()) {
+                mLogoRect.set(op.rect);
+                if (mLogoRect.bottom < 0) {
+                    // No height given, keep the logo's aspect ratio.
+                    mLogoRect.bottom = mLogoRect.top + (int) (mLogoRect.width()
+                            * mIoLogo.getIntrinsicHeight() / (float) mIoLogo.getIntrinsicWidth()
+                            + 0.5f);
+                }
+                mIoLogo.setBounds(mLogoRect);
+                mIoLogo.draw(canvas);
+            }
+        }
+    }
+
+    /**
+     * Draws the session's photos, QR codes and links over the template.
+     */
     private void drawSpec(PhotoStripSpec spec, Canvas canvas, Paint paint) {
-        final int halfMargin = MARGIN / 2;
-
-        // Starting from the top: draw the two images, then the logo
-        canvas.save();
-
-        final int imageLeftHorizMargin = MARGIN * 3;
-        final int imageRightHorizMargin = MARGIN * 2;
-        canvas.drawBitmap(spec.mOriginalImage,
-                null,
-                new Rect(imageLeftHorizMargin, MARGIN * 3, WIDTH - imageRightHorizMargin, WIDTH - MARGIN * 3),
-                paint);
-        canvas.translate(0, WIDTH);
-        canvas.drawBitmap(
-                spec.mStylizedImage == null ? spec.mOriginalImage : spec.mStylizedImage,
-                null,
-                new Rect(imageLeftHorizMargin, MARGIN, WIDTH - imageRightHorizMargin, WIDTH - MARGIN * 4),
-                paint);
-
-        canvas.translate(MARGIN * 2, WIDTH + MARGIN);
-        int logoWidth = WIDTH - (MARGIN * 4);
-
-        float gLogoScale = logoWidth / (float) mIoLogo.getIntrinsicWidth();
-        int gLogoHeight = (int) (gLogoScale * mIoLogo.getIntrinsicHeight() + 0.5f);
-        mIoLogo.setBounds(0, 0, logoWidth, gLogoHeight);
-        mIoLogo.draw(canvas);
-
-        canvas.restore();
-
-        // From the bottom: draw the two QR codes, then the text
-        canvas.translate(0, WIDTH * 2);
-
-        if (spec.mOriginalQrImage != null) {
-            canvas.save();
-            canvas.translate(0, WIDTH_HALF);
-            canvas.drawBitmap(spec.mOriginalQrImage, 0, 0, paint);
-            canvas.restore();
-        }
-        if (spec.mStylizedQrImage != null) {
-            canvas.save();
-            canvas.translate(WIDTH_HALF, WIDTH_HALF);
-            canvas.drawBitmap(spec.mStylizedQrImage, 0, 0, paint);
-            canvas.restore();
-        }
-
-        float textY = WIDTH_HALF;
-        paint.setTextSize(26);
-        paint.setTypeface(Typeface.MONOSPACE);
-        if (!TextUtils.isEmpty(spec.mOriginalQrLink)) {
-            String text = spec.mOriginalQrLink;
-            if (text.startsWith("https://")) {
-                text = text.substring(8);
+        for (StripLayout.Op op : mLayout.getOps()) {
+            switch (op.type) {
+                case PHOTO:
+                    canvas.drawBitmap(spec.getImage(op.slot), null, op.rect, paint);
+                    break;
+                case QR_CODE:
+                    drawQrCode(canvas, spec.getLink(op.slot), op.rect, paint);
+                    break;
+                case LABEL:
+                    String link = spec.getLink(op.slot);
+                    if (!TextUtils.isEmpty(link)) {
+                        paint.setTextSize(op.textSize);
+                        canvas.drawText(getLabel(link), op.rect.left, op.rect.top, paint);
+                    }
+                    break;
             }
-            canvas.drawText(text, MARGIN * 2, textY, paint);
         }
-        canvas.save();
-        canvas.translate(WIDTH_HALF, 0);
+    }
 
-        if (!TextUtils.isEmpty(spec.mStylizedQrLink)) {
-            String text = spec.mStylizedQrLink;
-            if (text.startsWith("https://")) {
-                text = text.substring(8);
+    private static void drawQrCode(Canvas canvas, String link, Rect rect, Paint paint) {
+        int size = Math.min(rect.width(), rect.height());
+        Bitmap qrCode = QrCodeCache.getInstance().createBitmap(link, size);
+        if (qrCode != null) {
+            canvas.drawBitmap(qrCode, rect.left, rect.top, paint);
+            qrCode.recycle();
+        }
+    }
+
+    /**
+     * Renders a QR code or label op, already scaled to dots, as a stamp.
+     */
+    private void addMonoLink(MonoStripRenderer renderer, StripLayout.Op op, String link) {
+        if (TextUtils.isEmpty(link)) {
+            return;
+        }
+        if (op.type == StripLayout.Type.QR_CODE) {
+            BitMatrix matrix = QrCodeCache.getInstance().getMatrix(link);
+            if (matrix != null) {
+                int size = Math.min(op.rect.width(), op.rect.height());
+                int modules = matrix.getWidth();
+                int moduleDots = QrCodeCache.getScale(matrix, size);
+                int padding = Math.max(0, (size - modules * moduleDots) / 2);
+                renderer.addStamp(createMonoQrCode(matrix, moduleDots),
+                        op.rect.left + padding, op.rect.top + padding);
+            }
+        } else {
+            Rect bounds = new Rect();
+            MonoBitmap label = createMonoLabel(getLabel(link), op.textSize, bounds);
+            if (label != null) {
+                renderer.addStamp(label, op.rect.left + bounds.left, op.rect.top + bounds.top);
+            }
+        }
+    }
+
+    /**
+     * Draws a QR code straight from its matrix, a whole number of dots per module.
+     */
+    private static MonoBitmap createMonoQrCode(BitMatrix matrix, int scale) {
+        int modules = matrix.getWidth();
+        MonoBitmap code = new MonoBitmap(modules * scale, modules * scale);
+        for (int my = 0; my < modules; my++) {
+            for (int mx = 0; mx < modules; mx++) {
+                if (matrix.get(mx, my)) {
+                    code.fillRect(mx * scale, my * scale, (mx + 1) * scale, (my + 1) * scale);
+                }
             }
-            canvas.drawText(text, MARGIN, textY, paint);
         }
-        canvas.restore();
+        return code;
+    }
+
+    /**
+     * Renders a label into a small coverage mask and keeps the dots at least half covered.
+     *
+     * @param outBounds Receives the label's bounds relative to its origin on the baseline.
+     * @return the label, or null if it has nothing to draw.
+     */
+    private MonoBitmap createMonoLabel(String text, float textSize, Rect outBounds) {
+        Paint paint = new Paint(mPaint);
+        paint.setTextSize(textSize);
+        paint.getTextBounds(text, 0, text.length(), outBounds);
+        if (outBounds.isEmpty()) {
+            return null;
+        }
+        int width = outBounds.width();
+        int height = outBounds.height();
+        Bitmap mask = Bitmap.createBitmap(width, height, Config.ALPHA_8);
+        new Canvas(mask).drawText(text, -outBounds.left, -outBounds.top, paint);
+
+        MonoBitmap label = new MonoBitmap(width, height);
+        int[] coverage = new int[width];
+        for (int y = 0; y < height; y++) {
+            mask.getPixels(coverage, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                if ((coverage[x] >>> 24) >= 128) {
+                    label.fillRect(x, y, x + 1, y + 1);
+                }
+            }
+        }
+        mask.recycle();
+        return label;
+    }
+
+    private static String getLabel(String link) {
+        return link.startsWith("https://") ? link.substring(8) : link;
     }
 
     public static class PhotoStripSpec {
@@ -179,8 +363,6 @@ public class PhotoStripBuilder {
 
         final String mOriginalQrLink;
         final String mStylizedQrLink;
-        final Bitmap mOriginalQrImage;
-        final Bitmap mStylizedQrImage;
 
         PhotoStripSpec(Bitmap originalImage, Bitmap stylizedImage, String originalQrLink,
                        String stylizedQrLink) {
@@ -188,10 +370,32 @@ public class PhotoStripBuilder {
             mStylizedImage = stylizedImage;
             mOriginalQrLink = originalQrLink;
             mStylizedQrLink = stylizedQrLink;
+        }
+
+        /**
+         * @return the photo for a slot, the original standing in for a missing stylized one.
+         */
+        Bitmap getImage(int slot) {
+            if (slot == SLOT_STYLIZED && mStylizedImage != null) {
+                return mStylizedImage;
+            }
+            return mOriginalImage;
+        }
 
-            int size = mOriginalImage.getWidth() / 2;
-            mOriginalQrImage = createQrCode(mOriginalQrLink, size);
-            mStylizedQrImage = createQrCode(mStylizedQrLink, size);
+        String getLink(int slot) {
+            return slot == SLOT_STYLIZED ? mStylizedQrLink : mOriginalQrLink;
+        }
+
+        /**
+         * Recycles the photos, for a spec that owns them.
+         */
+        void recycle() {
+            if (mOriginalImage != null) {
+                mOriginalImage.recycle();
+            }
+            if (mStylizedImage != null) {
+                mStylizedImage.recycle();
+            }
         }
     }
 }
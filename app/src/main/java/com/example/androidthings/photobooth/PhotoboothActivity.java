@@ -24,6 +24,7 @@ import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -34,11 +35,16 @@ import android.widget.ImageView;
 import com.example.androidthings.photobooth.PhotoStripBuilder.PhotoStripSpec;
 import com.google.android.things.contrib.driver.button.Button;
 import com.google.android.things.contrib.driver.button.ButtonInputDriver;
+import com.google.android.things.pio.PeripheralManager;
 import com.google.firebase.messaging.FirebaseMessaging;
+import com.google.firebase.storage.FirebaseStorage;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.io.PrintWriter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -53,6 +59,13 @@ public class PhotoboothActivity extends Activity {
     // For testing:  Just take one picture and apply all styles, saving images internally.
     public static final boolean PREVIEW_DUMP_DEBUG = false;
     public static final boolean USE_THERMAL_PRINTER = false;
+    // Print to simulated printers that log buffer overruns and idle time, no hardware needed.
+    public static final boolean SIMULATE_THERMAL_PRINTER = false;
+    public static final int SIMULATED_PRINTER_COUNT = 3;
+    // Send images with GS v 0, for printers whose firmware handles it.  Simulated ones always do.
+    public static final boolean PRINTER_RASTER_MODE = false;
+    // Keep uploads in memory instead of Firebase Storage, to try the upload queue offline.
+    public static final boolean SIMULATE_UPLOADS = false;
     private static final String TAG = "PhotoboothActivity";
     private static final String PRIMARY_BUTTON_GPIO_PIN = "BCM23";
     private static final String SECONDARY_BUTTON_GPIO_PIN = "BCM24";
@@ -62,7 +75,8 @@ public class PhotoboothActivity extends Activity {
     private static final boolean DEBUG_DRYRUN = false;
     // Fragments are initialized programmatically, so there's no ID's.  Keep references to them.
     private CameraConnectionFragment cameraFragment = null;
-    private ThermalPrinter mThermalPrinter;
+    private ThermalPrinterPool mPrinterPool;
+    private PrintSpooler mPrintSpooler;
     private TensorflowStyler mTensorflowStyler;
 
     /**
@@ -80,6 +94,7 @@ public class PhotoboothActivity extends Activity {
     private ButtonInputDriver mSecondaryButton;
 
     private FirebaseStorageAdapter mFirebaseAdapter;
+    private UploadQueue mUploadQueue;
 
     private Bitmap mCurrSourceBitmap;
     private Bitmap mCurrStyledBitmap;
@@ -136,8 +151,22 @@ public class PhotoboothActivity extends Activity {
 
         loadCameraFragment();
 
+        mPhotoStripBuilder = new PhotoStripBuilder(this);
+
         if (USE_THERMAL_PRINTER) {
-            mThermalPrinter = new ThermalPrinter(this);
+            if (SIMULATE_THERMAL_PRINTER) {
+                mPrinterPool = ThermalPrinterPool.simulate(SIMULATED_PRINTER_COUNT);
+            } else {
+                mPrinterPool = ThermalPrinterPool.discover(PeripheralManager.getInstance(),
+                        PRINTER_RASTER_MODE);
+            }
+            if (mPrinterPool.size() > 0) {
+                mPrintSpooler = new PrintSpooler(mPrinterPool, mPhotoStripBuilder,
+                        new File(getFilesDir(), "spool"));
+                mPrintSpooler.start();
+            } else {
+                Log.w(TAG, "No thermal printers found, strips won't be printed");
+            }
         }
 
         startInferenceThread();
@@ -146,7 +175,14 @@ public class PhotoboothActivity extends Activity {
                 () -> {
                     mTensorflowStyler = new TensorflowStyler(this);
                     mTensorflowStyler.initializeTensorFlow();
-                    mFirebaseAdapter = new FirebaseStorageAdapter();
+                    UploadStore uploadStore = SIMULATE_UPLOADS ? new InMemoryUploadStore()
+                            : new FirebaseUploadStore(
+                                    FirebaseStorage.getInstance().getReference("images"));
+                    mUploadQueue = new UploadQueue(uploadStore,
+                            new File(getFilesDir(), "uploads"));
+                    mUploadQueue.start();
+                    mFirebaseAdapter = new FirebaseStorageAdapter(mUploadQueue,
+                            getString(R.string.share_base_url));
                     initializeButtons();
 
                     mFirebaseAdapter.onStart();
@@ -162,8 +198,6 @@ public class PhotoboothActivity extends Activity {
 
                 }
         );
-
-        mPhotoStripBuilder = new PhotoStripBuilder(this);
     }
 
     private void loadCameraFragment() {
@@ -250,6 +284,7 @@ public class PhotoboothActivity extends Activity {
     }
 
     public void processChosenImage(boolean attendeeRequestingShare) {
+        final long requestedAtMs = SystemClock.uptimeMillis();
         runInBackground(() -> {
             if (mCurrSourceBitmap == null) {
                 Log.d(TAG, "No bitmap to process.");
@@ -259,35 +294,33 @@ public class PhotoboothActivity extends Activity {
 
             final Bitmap originalBitmap = mCurrSourceBitmap;
             final Bitmap styledBitmap = mCurrStyledBitmap;
-            final String[] links = new String[2];
-            final CountDownLatch latchLocker = new CountDownLatch(styledBitmap == null ? 1 : 2);
+            // The links are minted here, or reused for an image uploaded before, so the strip can
+            // print without waiting on the uploads.  The listeners only hear when the links
+            // start resolving.
+            final String originalShareId = mFirebaseAdapter.claimShareId(originalBitmap,
+                    FirebaseStorageAdapter.ROLE_ORIGINAL);
+            final String styledShareId = styledBitmap == null ? null
+                    : mFirebaseAdapter.claimShareId(styledBitmap,
+                    FirebaseStorageAdapter.ROLE_STYLED);
+            PhotoStripSpec spec = new PhotoStripSpec(originalBitmap, styledBitmap,
+                    mFirebaseAdapter.getShareLink(originalShareId).toString(),
+                    styledShareId == null ? null
+                            : mFirebaseAdapter.getShareLink(styledShareId).toString());
             FirebaseStorageAdapter.PhotoUploadedListener originalListener =
-                    url -> {
-                        Log.d(TAG, "Original uploaded successfully, shorturl= " + url);
-                        links[0] = url.toString();
-                        latchLocker.countDown();
-                    };
+                    url -> Log.d(TAG, "Original live " + (SystemClock.uptimeMillis()
+                            - requestedAtMs) + "ms after the request, link= " + url);
 
             FirebaseStorageAdapter.PhotoUploadedListener styledListener =
-                    url -> {
-                        Log.d(TAG, "Original uploaded successfully, shorturl= " + url);
-                        links[1] = url.toString();
-                        latchLocker.countDown();
-                    };
+                    url -> Log.d(TAG, "Styled live " + (SystemClock.uptimeMillis()
+                            - requestedAtMs) + "ms after the request, link= " + url);
 
             Log.d(TAG, "Uploading bitmaps");
-            mFirebaseAdapter.uploadBitmaps(originalBitmap, styledBitmap,
-                    originalListener, styledListener, attendeeRequestingShare);
-
-            try {
-                if (!latchLocker.await(15, TimeUnit.SECONDS)) {
-                    Log.w(TAG, "Timeout while waiting for short URLs, will proceed anyway");
-                }
-            } catch (InterruptedException e) {
-                Log.e(TAG, "Interrupted while waiting for short URLs, this should not happen");
-            }
+            CompletableFuture<Void> encoded = mFirebaseAdapter.uploadBitmaps(originalBitmap,
+                    styledBitmap, originalShareId, styledShareId, originalListener,
+                    styledListener, attendeeRequestingShare);
 
-            createAndPrintPhotoStrip(originalBitmap, styledBitmap, links[0], links[1], true);
+            // Printed while the photos encode, recycled once both are done.
+            printPhotoStrip(spec, encoded);
 
             mCurrSourceBitmap = null;
             mCurrStyledBitmap = null;
@@ -299,6 +332,39 @@ public class PhotoboothActivity extends Activity {
         });
     }
 
+    /**
+     * Prints a strip, or saves it for debugging when there is no printer.
+     *
+     * @param recycleAfter The photos are recycled once this has completed and the strip printed.
+     */
+    private void printPhotoStrip(PhotoStripSpec spec, CompletionStage<?> recycleAfter) {
+        String originalLink = spec.getLink(PhotoStripBuilder.SLOT_ORIGINAL);
+        String styledLink = spec.getLink(PhotoStripBuilder.SLOT_STYLIZED);
+        if (mPrintSpooler != null && originalLink != null) {
+            // The guest is waiting on the links, so they jump ahead of any queued photos.
+            mPrintSpooler.submit(new PrintJob.QrCode(originalLink, 200, originalLink,
+                    PrintJob.Priority.HIGH));
+            if (styledLink != null) {
+                mPrintSpooler.submit(new PrintJob.QrCode(styledLink, 200, styledLink,
+                        PrintJob.Priority.HIGH));
+            }
+        }
+        if (mPrintSpooler == null || IMAGE_PREVIEW_DEBUG) {
+            Bitmap bitmap = mPhotoStripBuilder.createPhotoStrip(spec, Bitmap.Config.RGB_565);
+            ImageUtils.saveBitmap(bitmap, "photostrip_debug.png");
+            bitmap.recycle();
+        }
+        if (mPrintSpooler != null) {
+            // Composited a band at a time while it prints.  The job recycles the photos.
+            PrintJob.Strip job = new PrintJob.Strip(mPhotoStripBuilder, spec, recycleAfter,
+                    PrintJob.Priority.NORMAL);
+            job.spool(mPrintSpooler);
+            mPrintSpooler.submit(job);
+        } else {
+            recycleAfter.whenComplete((result, e) -> spec.recycle());
+        }
+    }
+
     public void stylizeAndDisplayBitmap(final Bitmap sourceImage) {
         if (sourceImage == null) {
             return;
@@ -338,37 +404,6 @@ public class PhotoboothActivity extends Activity {
                 blended, "preview-" + style + "-blended.png");
     }
 
-    protected void createAndPrintPhotoStrip(Bitmap original, Bitmap styled, String shortLink1,
-                                            String shortLink2, boolean recycleBitmaps) {
-        final PhotoStripSpec spec = new PhotoStripSpec(original, styled, shortLink1, shortLink2);
-        if (USE_THERMAL_PRINTER && shortLink1 != null) {
-            mThermalPrinter.printQrCode(shortLink1, 200, shortLink1);
-            if (shortLink2 != null) {
-                mThermalPrinter.printQrCode(shortLink2, 200, shortLink2);
-            }
-        }
-        runInBackground(
-                () -> {
-                    Bitmap bitmap = mPhotoStripBuilder.createPhotoStrip(spec);
-                    ImageUtils.saveBitmap(bitmap, "photostrip_debug.png");
-
-                    // Assuming print code has been implemented,
-                    // Here's where you'd send the bitmap off to the printer.
-
-
-                    bitmap.recycle();
-                    if (recycleBitmaps) {
-                        if (original != null) {
-                            original.recycle();
-                        }
-                        if (styled != null) {
-                            styled.recycle();
-                        }
-                    }
-                }
-        );
-    }
-
     /**
      * Starts a background thread and its {@link Handler}.
      */
@@ -431,6 +466,31 @@ public class PhotoboothActivity extends Activity {
         }
     }
 
+    /**
+     * Prints pipeline statistics, run with
+     * {@code adb shell dumpsys activity com.example.androidthings.photobooth}.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (cameraFragment == null) {
+            return;
+        }
+        PreviewFrameGovernor governor = cameraFragment.getFrameGovernor();
+        writer.print(prefix);
+        writer.println(String.format("Preview fps: produced=%.1f dropped=%.1f displayed=%.1f",
+                governor.getProducedFps(), governor.getDroppedFps(),
+                governor.getDisplayedFps()));
+        cameraFragment.getLatencyTracer().dump(prefix, writer);
+        QrCodeCache.getInstance().dump(prefix, writer);
+        if (mFirebaseAdapter != null) {
+            mFirebaseAdapter.dump(prefix, writer);
+        }
+        if (mPrintSpooler != null) {
+            mPrintSpooler.dump(prefix, writer);
+        }
+    }
+
     @Override
     protected void onDestroy() {
         Log.d(TAG, "onDestroy");
@@ -441,11 +501,19 @@ public class PhotoboothActivity extends Activity {
         stopInferenceThread();
 
         mFirebaseAdapter.onStop();
+        if (mUploadQueue != null) {
+            mUploadQueue.stop();
+            mUploadQueue = null;
+        }
 
         destroyButtons();
-        if (mThermalPrinter != null) {
-            mThermalPrinter.close();
-            mThermalPrinter = null;
+        if (mPrintSpooler != null) {
+            mPrintSpooler.stop();
+            mPrintSpooler = null;
+        }
+        if (mPrinterPool != null) {
+            mPrinterPool.close();
+            mPrinterPool = null;
         }
         super.onDestroy();
     }
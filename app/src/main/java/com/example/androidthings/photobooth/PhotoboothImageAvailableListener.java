@@ -15,7 +15,6 @@
  */
 package com.example.androidthings.photobooth;
 
-import android.app.Activity;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.media.Image;
@@ -23,7 +22,6 @@ import android.media.ImageReader;
 import android.media.ImageReader.OnImageAvailableListener;
 import android.os.Trace;
 import android.util.Log;
-import android.widget.ImageView;
 
 import junit.framework.Assert;
 
@@ -38,10 +36,8 @@ public class PhotoboothImageAvailableListener implements OnImageAvailableListene
     private int sensorOrientation = 0;
 
     private Bitmap rgbFrameBitmap = null;
-    private Bitmap croppedBitmap = null;
 
     private boolean computing = false;
-    private Activity activity;
 
     private int previewWidth;
     private int previewHeight;
@@ -49,16 +45,22 @@ public class PhotoboothImageAvailableListener implements OnImageAvailableListene
     private byte[][] cachedYuvBytes = new byte[3][];
     private int[] rgbBytes = null;
 
-    // Keep reference to most recent bitmap in preview window, as this will be the one stylized.
-    private Bitmap mLatestBitmap = null;
+    // Owns the preview buffers.  The one on screen is the one that will be stylized.
+    private volatile PreviewPresenter mPresenter;
 
     private boolean mInPreviewMode = false;
 
-    public void initialize(
-            final Activity activity,
-            final Integer sensorOrientation) {
+    private final PreviewFrameGovernor mFrameGovernor;
+    private final FrameLatencyTracer mLatencyTracer;
+
+    public PhotoboothImageAvailableListener(PreviewFrameGovernor frameGovernor,
+                                            FrameLatencyTracer latencyTracer) {
+        mFrameGovernor = frameGovernor;
+        mLatencyTracer = latencyTracer;
+    }
+
+    public void initialize(final Integer sensorOrientation) {
         Assert.assertNotNull(sensorOrientation);
-        this.activity = activity;
         this.sensorOrientation = sensorOrientation == null ? 0 : sensorOrientation;
     }
 
@@ -72,17 +74,25 @@ public class PhotoboothImageAvailableListener implements OnImageAvailableListene
             if (image == null) {
                 computing = false;
                 return;
-            } else if (!mInPreviewMode) {
+            }
+            mFrameGovernor.onFrameProduced();
+            if (!mInPreviewMode) {
                 image.close();
+                mFrameGovernor.onFrameDropped();
                 computing = false;
                 return;
             } else if (computing) {
                 image.close();
+                mFrameGovernor.onFrameDropped();
                 Log.d(TAG, "Mutexed.");
 
                 return;
             }
             computing = true;
+            final long sensorTimestampNs = image.getTimestamp();
+            final long conversionStartNs = mLatencyTracer.now();
+            mLatencyTracer.record(FrameLatencyTracer.Stage.SENSOR_TO_LISTENER,
+                    conversionStartNs - sensorTimestampNs);
 
             Trace.beginSection("imageAvailable");
 
@@ -93,18 +103,40 @@ public class PhotoboothImageAvailableListener implements OnImageAvailableListene
 
                 rgbBytes = new int[previewWidth * previewHeight];
                 rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
-                croppedBitmap = Bitmap.createBitmap(INPUT_SIZE, INPUT_SIZE, Config.ARGB_8888);
             }
 
-            ImageUtils.convertImageToBitmap(image, previewWidth, previewHeight, rgbBytes, cachedYuvBytes);
+            Trace.beginSection("convertImage");
+            try {
+                ImageUtils.convertImageToBitmap(
+                        image, previewWidth, previewHeight, rgbBytes, cachedYuvBytes);
+            } finally {
+                Trace.endSection();
+            }
             image.close();
+            final long cropStartNs = mLatencyTracer.now();
+            mLatencyTracer.record(FrameLatencyTracer.Stage.CONVERT,
+                    cropStartNs - conversionStartNs);
 
-            if (croppedBitmap != null && rgbFrameBitmap != null) {
-                rgbFrameBitmap.setPixels(rgbBytes, 0, previewWidth, 0, 0, previewWidth, previewHeight);
+            PreviewPresenter presenter = mPresenter;
+            if (presenter == null) {
+                computing = false;
+                Trace.endSection();
+                return;
+            }
+            Bitmap croppedBitmap = presenter.obtainBuffer(INPUT_SIZE, INPUT_SIZE);
+            Trace.beginSection("cropImage");
+            try {
+                rgbFrameBitmap.setPixels(
+                        rgbBytes, 0, previewWidth, 0, 0, previewWidth, previewHeight);
                 ImageUtils.cropAndRescaleBitmap(rgbFrameBitmap, croppedBitmap, sensorOrientation);
+            } finally {
+                Trace.endSection();
             }
+            final long cropEndNs = mLatencyTracer.now();
+            mLatencyTracer.record(FrameLatencyTracer.Stage.CROP, cropEndNs - cropStartNs);
 
-            updateImageView(croppedBitmap, activity);
+            mFrameGovernor.onFrameDisplayed(cropEndNs - conversionStartNs);
+            updateImageView(croppedBitmap, sensorTimestampNs);
         } catch (final Exception e) {
             if (image != null) {
                 image.close();
@@ -119,43 +151,41 @@ public class PhotoboothImageAvailableListener implements OnImageAvailableListene
         Trace.endSection();
     }
 
+    public void setPresenter(PreviewPresenter presenter) {
+        mPresenter = presenter;
+    }
+
     public void setPreviewMode(boolean inPreviewMode) {
         mInPreviewMode = inPreviewMode;
+        PreviewPresenter presenter = mPresenter;
+        if (!inPreviewMode && presenter != null) {
+            // Don't let a late preview frame replace whatever is shown next.
+            presenter.cancel();
+        }
     }
 
     public boolean getInPreviewMode() {
         return mInPreviewMode;
     }
 
-    private void updateImageView(final Bitmap bmp, final Activity activity) {
-        if (activity != null && mInPreviewMode) {
-            activity.runOnUiThread(
-                    () -> {
-                        if (bmp != null) {
-                            ImageView view = (ImageView) activity.findViewById(R.id.imageView);
-                            if (view != null) {
-                                view.setImageBitmap(bmp);
-                                mLatestBitmap = bmp;
-                            } else {
-                                Log.d(TAG, "Not updating image view: View is null.");
-                            }
-                        } else {
-                            Log.d(TAG, "bmp is null, not updating image view.");
-                        }
-                    });
+    private void updateImageView(final Bitmap bmp, final long sensorTimestampNs) {
+        PreviewPresenter presenter = mPresenter;
+        if (presenter != null && mInPreviewMode) {
+            presenter.present(bmp, sensorTimestampNs);
         } else {
             Log.d(TAG, "Update did not occur.  Likely not in preview mode");
         }
     }
 
     public void clearLastImage() {
-        if (mLatestBitmap != null && !mLatestBitmap.isRecycled()) {
-            mLatestBitmap.recycle();
-            mLatestBitmap = null;
+        PreviewPresenter presenter = mPresenter;
+        if (presenter != null) {
+            presenter.clear();
         }
     }
 
     public Bitmap getLatestBitmap() {
-        return mLatestBitmap;
+        PreviewPresenter presenter = mPresenter;
+        return presenter == null ? null : presenter.getDisplayedBuffer();
     }
 }
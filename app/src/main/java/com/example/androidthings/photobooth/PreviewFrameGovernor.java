@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+
+/**
+ * Keeps the camera from producing more preview frames than the image listener can convert.
+ *
+ * The listener reports every frame the camera hands it, whether it was dropped or displayed, and
+ * how long the conversion took.  Once per stats window the governor turns the smoothed
+ * conversion cost into a sustainable frame rate and picks the closest AE target FPS range the
+ * camera supports.  When that changes, the {@link FpsRangeListener} is asked to rebuild the
+ * repeating request.
+ */
+public class PreviewFrameGovernor {
+
+    private static final String TAG = "PreviewFrameGovernor";
+
+    private static final long STATS_WINDOW_NS = 1000000000L;
+    // Weight of the newest sample in the moving average of conversion cost.
+    private static final float COST_SMOOTHING = 0.2f;
+    // Leave some of each frame interval free, the listener thread also services the camera.
+    private static final float HEADROOM = 0.85f;
+
+    /**
+     * Notified when the governor wants the camera to run at a different frame rate.
+     */
+    public interface FpsRangeListener {
+        void onTargetFpsRangeChanged(Range<Integer> fpsRange);
+    }
+
+    private final FpsRangeListener mListener;
+
+    private Range<Integer>[] mAvailableRanges;
+    private volatile Range<Integer> mTargetRange;
+
+    private float mAverageCostNs = 0;
+
+    private long mWindowStartNs = 0;
+    private int mProducedInWindow = 0;
+    private int mDroppedInWindow = 0;
+    private int mDisplayedInWindow = 0;
+
+    private volatile float mProducedFps = 0;
+    private volatile float mDroppedFps = 0;
+    private volatile float mDisplayedFps = 0;
+
+    public PreviewFrameGovernor(FpsRangeListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the ranges reported by {@code CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES}.  Passing null
+     * disables frame rate changes, but the FPS counters keep working.
+     */
+    public synchronized void setAvailableRanges(Range<Integer>[] ranges) {
+        mAvailableRanges = ranges;
+        mTargetRange = null;
+    }
+
+    /**
+     * @return the range the repeating request should use, or null to leave the template default.
+     */
+    public Range<Integer> getTargetRange() {
+        return mTargetRange;
+    }
+
+    /**
+     * Called for every image the camera delivered to the listener.  The {@link FpsRangeListener}
+     * is called from here, after the governor's lock is released.
+     */
+    public void onFrameProduced() {
+        Range<Integer> changed;
+        synchronized (this) {
+            mProducedInWindow++;
+            changed = maybeCloseWindow();
+        }
+        if (changed != null && mListener != null) {
+            mListener.onTargetFpsRangeChanged(changed);
+        }
+    }
+
+    /**
+     * Called for every delivered image that was closed without being converted.
+     */
+    public synchronized void onFrameDropped() {
+        mDroppedInWindow++;
+    }
+
+    /**
+     * Called once a converted frame has been handed to the preview.
+     *
+     * @param conversionNs Time spent converting and cropping the frame.
+     */
+    public synchronized void onFrameDisplayed(long conversionNs) {
+        mDisplayedInWindow++;
+        if (mAverageCostNs == 0) {
+            mAverageCostNs = conversionNs;
+        } else {
+            mAverageCostNs += COST_SMOOTHING * (conversionNs - mAverageCostNs);
+        }
+    }
+
+    public float getProducedFps() {
+        return mProducedFps;
+    }
+
+    public float getDroppedFps() {
+        return mDroppedFps;
+    }
+
+    public float getDisplayedFps() {
+        return mDisplayedFps;
+    }
+
+    /**
+     * @return the new target range if closing the window changed it, otherwise null.
+     */
+    private Range<Integer> maybeCloseWindow() {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (mWindowStartNs == 0) {
+            mWindowStartNs = now;
+            return null;
+        }
+        long elapsed = now - mWindowStartNs;
+        if (elapsed < STATS_WINDOW_NS) {
+            return null;
+        }
+
+        float seconds = elapsed / 1e9f;
+        mProducedFps = mProducedInWindow / seconds;
+        mDroppedFps = mDroppedInWindow / seconds;
+        mDisplayedFps = mDisplayedInWindow / seconds;
+        Log.d(TAG, String.format("fps produced=%.1f dropped=%.1f displayed=%.1f cost=%.1fms",
+                mProducedFps, mDroppedFps, mDisplayedFps, mAverageCostNs / 1e6f));
+
+        mWindowStartNs = now;
+        mProducedInWindow = 0;
+        mDroppedInWindow = 0;
+        mDisplayedInWindow = 0;
+
+        return updateTargetRange();
+    }
+
+    /**
+     * @return the new target range if it changed, otherwise null.
+     */
+    private Range<Integer> updateTargetRange() {
+        if (mAvailableRanges == null || mAvailableRanges.length == 0 || mAverageCostNs <= 0) {
+            return null;
+        }
+        float sustainableFps = HEADROOM * 1e9f / mAverageCostNs;
+
+        // Fastest range whose upper bound we can keep up with.  If even the slowest range is too
+        // fast, use it anyway and let the listener drop what it can't handle.
+        Range<Integer> best = null;
+        Range<Integer> slowest = null;
+        for (Range<Integer> range : mAvailableRanges) {
+            if (slowest == null || range.getUpper() < slowest.getUpper()) {
+                slowest = range;
+            }
+            if (range.getUpper() > sustainableFps) {
+                continue;
+            }
+            if (best == null || range.getUpper() > best.getUpper()
+                    || (range.getUpper().equals(best.getUpper())
+                    && range.getLower() < best.getLower())) {
+                best = range;
+            }
+        }
+        if (best == null) {
+            best = slowest;
+        }
+
+        if (best.equals(mTargetRange)) {
+            return null;
+        }
+        Log.i(TAG, "Sustainable preview rate " + sustainableFps + "fps, requesting " + best);
+        mTargetRange = best;
+        return best;
+    }
+}
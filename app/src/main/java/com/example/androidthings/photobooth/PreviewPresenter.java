@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.view.Choreographer;
+import android.widget.ImageView;
+
+/**
+ * Shows preview frames in an {@link ImageView}, at most once per display frame.
+ *
+ * Frames are triple buffered: the image listener draws into the buffer returned by
+ * {@link #obtainBuffer(int, int)} and hands it back with {@link #present(Bitmap, long)}.  If a
+ * frame is already waiting for the next vsync it is replaced by the newer one and its buffer
+ * recycled for drawing, so the main thread only ever has a single frame callback pending no
+ * matter how fast the camera runs.
+ */
+public class PreviewPresenter implements Choreographer.FrameCallback {
+
+    private final ImageView mView;
+    private final Choreographer mChoreographer;
+    private final FrameLatencyTracer mLatencyTracer;
+
+    // Guarded by "this".
+    private Bitmap mFreeBuffer;
+    private Bitmap mPendingBuffer;
+    private Bitmap mDisplayedBuffer;
+    private boolean mFrameScheduled = false;
+    private long mPendingSensorTimestampNs;
+    private long mPendingPresentNs;
+
+    /**
+     * Must be called on the main thread, the {@link Choreographer} is per-thread.
+     */
+    public PreviewPresenter(ImageView view, FrameLatencyTracer latencyTracer) {
+        mView = view;
+        mChoreographer = Choreographer.getInstance();
+        mLatencyTracer = latencyTracer;
+    }
+
+    /**
+     * Returns a buffer that is neither on screen nor waiting to be shown.  Called from the image
+     * listener's thread.
+     */
+    public synchronized Bitmap obtainBuffer(int width, int height) {
+        Bitmap buffer = mFreeBuffer;
+        mFreeBuffer = null;
+        if (buffer == null || buffer.getWidth() != width || buffer.getHeight() != height) {
+            buffer = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+        }
+        return buffer;
+    }
+
+    /**
+     * Queues a buffer obtained from {@link #obtainBuffer(int, int)} for the next vsync.
+     *
+     * @param sensorTimestampNs The camera timestamp of the frame drawn into the buffer.
+     */
+    public synchronized void present(Bitmap buffer, long sensorTimestampNs) {
+        if (mPendingBuffer != null) {
+            // Never got shown, newer frame wins.
+            mFreeBuffer = mPendingBuffer;
+        }
+        mPendingBuffer = buffer;
+        mPendingSensorTimestampNs = sensorTimestampNs;
+        mPendingPresentNs = mLatencyTracer.now();
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public synchronized void doFrame(long frameTimeNanos) {
+        mFrameScheduled = false;
+        if (mPendingBuffer == null) {
+            return;
+        }
+        mView.setImageBitmap(mPendingBuffer);
+        long now = mLatencyTracer.now();
+        mLatencyTracer.record(FrameLatencyTracer.Stage.PRESENT_WAIT, now - mPendingPresentNs);
+        mLatencyTracer.record(FrameLatencyTracer.Stage.SENSOR_TO_DISPLAY,
+                now - mPendingSensorTimestampNs);
+        if (mDisplayedBuffer != null) {
+            mFreeBuffer = mDisplayedBuffer;
+        }
+        mDisplayedBuffer = mPendingBuffer;
+        mPendingBuffer = null;
+    }
+
+    /**
+     * Drops any frame that hasn't been shown yet, e.g. because preview was stopped and something
+     * else is about to be put in the view.
+     */
+    public synchronized void cancel() {
+        if (mFrameScheduled) {
+            mChoreographer.removeFrameCallback(this);
+            mFrameScheduled = false;
+        }
+        if (mPendingBuffer != null) {
+            mFreeBuffer = mPendingBuffer;
+            mPendingBuffer = null;
+        }
+    }
+
+    /**
+     * @return the frame currently on screen, or null if none has been shown yet.
+     */
+    public synchronized Bitmap getDisplayedBuffer() {
+        return mDisplayedBuffer;
+    }
+
+    /**
+     * Cancels pending frames and recycles every buffer.
+     */
+    public synchronized void clear() {
+        cancel();
+        recycle(mFreeBuffer);
+        recycle(mDisplayedBuffer);
+        mFreeBuffer = null;
+        mDisplayedBuffer = null;
+    }
+
+    private static void recycle(Bitmap bitmap) {
+        if (bitmap != null && !bitmap.isRecycled()) {
+            bitmap.recycle();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import java.util.Arrays;
+
+/**
+ * Reduces grayscale rows to one bit per dot for the thermal printer, one row at a time.
+ *
+ * Rows must be fed top to bottom.  Floyd-Steinberg keeps only the error diffused into the current
+ * and the next row, so memory use depends on the width and never on the image height.  Output
+ * rows are packed most significant bit first, a set bit meaning "burn this dot".
+ */
+public class PrintDitherer {
+
+    public enum Mode {
+        /** Dark below 50% gray.  Right for QR codes and text, loses all photo detail. */
+        THRESHOLD,
+        /** 8x8 Bayer matrix.  Fast, regular pattern, no error carried between rows. */
+        ORDERED,
+        /** Error diffusion.  Best looking photos. */
+        FLOYD_STEINBERG
+    }
+
+    private static final int THRESHOLD = 128;
+
+    // Bayer thresholds scaled to 0..255, centred in each step.
+    private static final int[] BAYER_8X8 = new int[64];
+
+    static {
+        final int[] bayer = {
+                0, 32, 8, 40, 2, 34, 10, 42,
+                48, 16, 56, 24, 50, 18, 58, 26,
+                12, 44, 4, 36, 14, 46, 6, 38,
+                60, 28, 52, 20, 62, 30, 54, 22,
+                3, 35, 11, 43, 1, 33, 9, 41,
+                51, 19, 59, 27, 49, 17, 57, 25,
+                15, 47, 7, 39, 13, 45, 5, 37,
+                63, 31, 55, 23, 61, 29, 53, 21};
+        for (int i = 0; i < bayer.length; i++) {
+            BAYER_8X8[i] = bayer[i] * 4 + 2;
+        }
+    }
+
+    private final Mode mMode;
+    private final int mWidth;
+
+    // Error for the row being dithered and the one below it, in 1/16ths of a gray level.
+    // One spare entry on each side so the kernel never needs bounds checks.
+    private int[] mCurrentErrors;
+    private int[] mNextErrors;
+
+    public PrintDitherer(Mode mode, int width) {
+        mMode = mode;
+        mWidth = width;
+        if (mode == Mode.FLOYD_STEINBERG) {
+            mCurrentErrors = new int[width + 2];
+            mNextErrors = new int[width + 2];
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return bytes needed to hold one packed output row.
+     */
+    public int getRowBytes() {
+        return (mWidth + 7) / 8;
+    }
+
+    /**
+     * Forgets any diffused error, call before starting a new image.
+     */
+    public void reset() {
+        if (mCurrentErrors != null) {
+            Arrays.fill(mCurrentErrors, 0);
+            Arrays.fill(mNextErrors, 0);
+        }
+    }
+
+    /**
+     * Dithers one row.
+     *
+     * @param gray      {@link #getWidth()} luminance values, 0 black to 255 white.
+     * @param y         Row index in the image, used by the ordered mode.
+     * @param out       Destination for {@link #getRowBytes()} packed bytes.
+     * @param outOffset Offset of the row in {@code out}.
+     */
+    public void ditherRow(int[] gray, int y, byte[] out, int outOffset) {
+        Arrays.fill(out, outOffset, outOffset + getRowBytes(), (byte) 0);
+        switch (mMode) {
+            case THRESHOLD:
+                for (int x = 0; x < mWidth; x++) {
+                    if (gray[x] < THRESHOLD) {
+                        setDot(out, outOffset, x);
+                    }
+                }
+                break;
+            case ORDERED:
+                int bayerRow = (y & 7) * 8;
+                for (int x = 0; x < mWidth; x++) {
+                    if (gray[x] < BAYER_8X8[bayerRow + (x & 7)]) {
+                        setDot(out, outOffset, x);
+                    }
+                }
+                break;
+            case FLOYD_STEINBERG:
+                ditherFloydSteinberg(gray, out, outOffset);
+                break;
+        }
+    }
+
+    private void ditherFloydSteinberg(int[] gray, byte[] out, int outOffset) {
+        final int[] current = mCurrentErrors;
+        final int[] next = mNextErrors;
+        for (int x = 0; x < mWidth; x++) {
+            int value = gray[x] + current[x + 1] / 16;
+            int error;
+            if (value < THRESHOLD) {
+                setDot(out, outOffset, x);
+                error = value;
+            } else {
+                error = value - 255;
+            }
+            //        X   7
+            //    3   5   1
+            current[x + 2] += error * 7;
+            next[x] += error * 3;
+            next[x + 1] += error * 5;
+            next[x + 2] += error;
+        }
+        // The next row becomes current, and the old current is cleared to collect new error.
+        mCurrentErrors = next;
+        mNextErrors = current;
+        Arrays.fill(current, 0);
+    }
+
+    private static void setDot(byte[] out, int offset, int x) {
+        out[offset + (x >> 3)] |= (byte) (0x80 >>> (x & 7));
+    }
+
+    /**
+     * @return the perceived brightness of an ARGB pixel composited over white paper.
+     */
+    public static int luminance(int argb) {
+        int alpha = argb >>> 24;
+        int r = (argb >> 16) & 0xff;
+        int g = (argb >> 8) & 0xff;
+        int b = argb & 0xff;
+        // Rec. 601 weights in fixed point, they sum to 256.
+        int luma = (77 * r + 150 * g + 29 * b) >> 8;
+        if (alpha == 0xff) {
+            return luma;
+        }
+        return (luma * alpha + 255 * (255 - alpha)) / 255;
+    }
+}
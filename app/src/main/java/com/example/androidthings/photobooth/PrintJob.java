@@ -0,0 +1,391 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.androidthings.photobooth.PhotoStripBuilder.PhotoStripSpec;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A unit of work for the {@link PrintSpooler}.
+ *
+ * Jobs are small and serializable to a single journal line, so anything still queued when the
+ * app dies is printed after it restarts.  A {@link Strip} journals the spool files its photos
+ * were written to, see {@link PrintSpooler#spoolPhoto}, and reads them back if it has to.
+ */
+public abstract class PrintJob {
+
+    private static final String TAG = "PrintJob";
+    private static final String FIELD_SEPARATOR = "\t";
+
+    public enum Priority {
+        // Declared from most to least urgent, the spooler orders by ordinal.
+        HIGH, NORMAL, LOW
+    }
+
+    private long mId;
+    private final Priority mPriority;
+    private volatile boolean mCancelled = false;
+    private int mAttempts = 0;
+
+    private long mQueuedAtMs;
+    private long mStartedAtMs;
+    private long mFinishedAtMs;
+
+    PrintJob(Priority priority) {
+        mPriority = priority;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    void setId(long id) {
+        mId = id;
+    }
+
+    public Priority getPriority() {
+        return mPriority;
+    }
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return how many times the job has been started, including the current one.
+     */
+    int getAttempts() {
+        return mAttempts;
+    }
+
+    void markQueued() {
+        mQueuedAtMs = SystemClock.elapsedRealtime();
+    }
+
+    void markStarted() {
+        mAttempts++;
+        mStartedAtMs = SystemClock.elapsedRealtime();
+    }
+
+    void markFinished() {
+        mFinishedAtMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return time spent waiting in the queue, in milliseconds.
+     */
+    public long getQueuedMs() {
+        return mStartedAtMs - mQueuedAtMs;
+    }
+
+    /**
+     * @return time spent printing, in milliseconds.
+     */
+    public long getPrintMs() {
+        return mFinishedAtMs - mStartedAtMs;
+    }
+
+    /**
+     * Sends the job to the printer.  Called on the spooler thread.
+     */
+    abstract void print(ThermalPrinter printer);
+
+    /**
+     * Releases anything the job holds.  Called once the job is done or cancelled.
+     */
+    void discard() {
+    }
+
+    /**
+     * @return false for jobs that only live in memory and can't be journaled.
+     */
+    boolean isDurable() {
+        return true;
+    }
+
+    /**
+     * @return the spool files the job needs to print after a restart.
+     */
+    List<File> getSpoolFiles() {
+        return Collections.emptyList();
+    }
+
+    abstract String getType();
+
+    /**
+     * @return the type-specific fields, they must not contain the field separator.
+     */
+    abstract String[] getFields();
+
+    String toJournalLine() {
+        StringBuilder line = new StringBuilder();
+        line.append(mId).append(FIELD_SEPARATOR)
+                .append(mPriority.name()).append(FIELD_SEPARATOR)
+                .append(getType());
+        for (String field : getFields()) {
+            line.append(FIELD_SEPARATOR).append(Uri.encode(field == null ? "" : field));
+        }
+        return line.toString();
+    }
+
+    /**
+     * @param stripBuilder Renders a {@link Strip}.
+     * @return the job described by a journal line, or null if it can't be restored.
+     */
+    static PrintJob fromJournalLine(String line, PhotoStripBuilder stripBuilder) {
+        String[] parts = line.split(FIELD_SEPARATOR, -1);
+        if (parts.length < 3) {
+            return null;
+        }
+        PrintJob job;
+        try {
+            Priority priority = Priority.valueOf(parts[1]);
+            switch (parts[2]) {
+                case QrCode.TYPE:
+                    job = new QrCode(Uri.decode(parts[3]), Integer.parseInt(parts[4]),
+                            Uri.decode(parts[5]), priority);
+                    break;
+                case Strip.TYPE:
+                    String styledPath = Uri.decode(parts[4]);
+                    job = new Strip(stripBuilder, new File(Uri.decode(parts[3])),
+                            styledPath.isEmpty() ? null : new File(styledPath),
+                            emptyToNull(Uri.decode(parts[5])), emptyToNull(Uri.decode(parts[6])),
+                            priority);
+                    break;
+                default:
+                    return null;
+            }
+            job.setId(Long.parseLong(parts[0]));
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            Log.w(TAG, "Dropping unreadable journal entry: " + line, e);
+            return null;
+        }
+        return job;
+    }
+
+    private static String emptyToNull(String field) {
+        return field.isEmpty() ? null : field;
+    }
+
+    @Override
+    public String toString() {
+        return getType() + "#" + mId + "(" + mPriority + ")";
+    }
+
+    /**
+     * The "Here's your photo!" slip: a QR code with the link printed under it.
+     */
+    public static class QrCode extends PrintJob {
+        static final String TYPE = "qr";
+
+        private final String mData;
+        private final int mSize;
+        private final String mLabel;
+
+        public QrCode(String data, int size, String label, Priority priority) {
+            super(priority);
+            mData = data;
+            mSize = size;
+            mLabel = label;
+        }
+
+        @Override
+        void print(ThermalPrinter printer) {
+            printer.printQrCode(mData, mSize, mLabel);
+        }
+
+        @Override
+        String getType() {
+            return TYPE;
+        }
+
+        @Override
+        String[] getFields() {
+            return new String[]{mData, Integer.toString(mSize), mLabel};
+        }
+    }
+
+    /**
+     * A photo strip rendered while it prints, see {@link MonoStripRenderer}.
+     *
+     * It prints from the session's photos while they are in memory.  Once {@link #spool} has
+     * written them to disk the job is journaled too, and after a restart it decodes them from
+     * there instead.
+     */
+    public static class Strip extends PrintJob {
+        static final String TYPE = "strip";
+
+        private final PhotoStripBuilder mBuilder;
+        private final String mOriginalLink;
+        private final String mStyledLink;
+        private final CompletionStage<?> mRecycleAfter;
+        // Null for a reloaded job until its photos are decoded.
+        private PhotoStripSpec mSpec;
+        // Set once the photos are decoded from the spool files, the job recycles them itself.
+        private boolean mOwnsPhotos = false;
+        private File mOriginalFile;
+        private File mStyledFile;
+
+        /**
+         * @param recycleAfter The spec's photos are recycled once the job is done and this has
+         *                     completed.  Null leaves them to the caller.
+         */
+        public Strip(PhotoStripBuilder builder, PhotoStripSpec spec,
+                     CompletionStage<?> recycleAfter, Priority priority) {
+            super(priority);
+            mBuilder = builder;
+            mSpec = spec;
+            mOriginalLink = spec.getLink(PhotoStripBuilder.SLOT_ORIGINAL);
+            mStyledLink = spec.getLink(PhotoStripBuilder.SLOT_STYLIZED);
+            mRecycleAfter = recycleAfter;
+        }
+
+        /**
+         * Reloaded from the journal.
+         *
+         * @param styledFile Null if the strip has no stylized photo.
+         */
+        Strip(PhotoStripBuilder builder, File originalFile, File styledFile, String originalLink,
+              String styledLink, Priority priority) {
+            super(priority);
+            mBuilder = builder;
+            mOriginalFile = originalFile;
+            mStyledFile = styledFile;
+            mOriginalLink = originalLink;
+            mStyledLink = styledLink;
+            mRecycleAfter = null;
+        }
+
+        /**
+         * Writes the photos to spool files, on the calling thread, so the job is journaled.  Call
+         * before {@link PrintSpooler#submit}; if it fails the job still prints, it just isn't
+         * journaled.
+         */
+        void spool(PrintSpooler spooler) {
+            File original = spooler.spoolPhoto(mSpec.mOriginalImage);
+            if (original == null) {
+                return;
+            }
+            File styled = null;
+            if (mSpec.mStylizedImage != null) {
+                styled = spooler.spoolPhoto(mSpec.mStylizedImage);
+                if (styled == null) {
+                    delete(original);
+                    return;
+                }
+            }
+            mOriginalFile = original;
+            mStyledFile = styled;
+        }
+
+        @Override
+        void print(ThermalPrinter printer) {
+            PhotoStripSpec spec = getSpec();
+            if (spec == null) {
+                Log.w(TAG, "Unable to read the photos for " + this);
+                return;
+            }
+            // A renderer only goes through the strip once, so each attempt opens its own.
+            printer.printStrip(mBuilder.openMonoStrip(spec, ThermalPrinter.PRINTER_DOT_WIDTH));
+        }
+
+        /**
+         * @return the photos and links, decoding the photos from their spool files if they
+         * aren't in memory, or null if they can't be.
+         */
+        private synchronized PhotoStripSpec getSpec() {
+            if (mSpec != null) {
+                return mSpec;
+            }
+            Bitmap original = BitmapFactory.decodeFile(mOriginalFile.getPath());
+            if (original == null) {
+                return null;
+            }
+            Bitmap styled = null;
+            if (mStyledFile != null) {
+                styled = BitmapFactory.decodeFile(mStyledFile.getPath());
+                if (styled == null) {
+                    original.recycle();
+                    return null;
+                }
+            }
+            mSpec = new PhotoStripSpec(original, styled, mOriginalLink, mStyledLink);
+            mOwnsPhotos = true;
+            return mSpec;
+        }
+
+        @Override
+        synchronized void discard() {
+            if (mOwnsPhotos) {
+                mSpec.recycle();
+            } else if (mRecycleAfter != null) {
+                PhotoStripSpec spec = mSpec;
+                mRecycleAfter.whenComplete((result, e) -> spec.recycle());
+            }
+            delete(mOriginalFile);
+            delete(mStyledFile);
+        }
+
+        @Override
+        boolean isDurable() {
+            return mOriginalFile != null;
+        }
+
+        @Override
+        List<File> getSpoolFiles() {
+            List<File> files = new ArrayList<>();
+            if (mOriginalFile != null) {
+                files.add(mOriginalFile);
+            }
+            if (mStyledFile != null) {
+                files.add(mStyledFile);
+            }
+            return files;
+        }
+
+        @Override
+        String getType() {
+            return TYPE;
+        }
+
+        @Override
+        String[] getFields() {
+            return new String[]{mOriginalFile.getPath(),
+                    mStyledFile == null ? "" : mStyledFile.getPath(), mOriginalLink, mStyledLink};
+        }
+
+        private static void delete(File file) {
+            if (file != null && file.exists() && !file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+        }
+    }
+}
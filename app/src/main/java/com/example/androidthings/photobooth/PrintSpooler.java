@@ -0,0 +1,422 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * Prints jobs on dedicated threads, so printing overlaps with the next guest's capture and
+ * stylization instead of blocking the inference thread.
+ *
+ * Jobs are taken most urgent first, first come first served within a priority.  There is one
+ * worker thread per printer in the {@link ThermalPrinterPool}, each taking the next job and
+ * printing it on whichever printer the pool hands out.  A job whose printer faulted is queued
+ * again for another printer, up to {@link #MAX_ATTEMPTS} times.  The queue is bounded; when it
+ * is full {@link #submit(PrintJob)} refuses the job rather than letting a stuck printer eat
+ * memory.  Every queued job is also listed in a journal file, rewritten on each change, and
+ * reloaded by {@link #start()}.  Photos a job prints from are kept in spool files next to the
+ * journal, see {@link #spoolPhoto(Bitmap)}.
+ */
+public class PrintSpooler {
+
+    private static final String TAG = "PrintSpooler";
+    private static final String JOURNAL_FILE = "print-journal.txt";
+    private static final String SPOOL_PREFIX = "spool-";
+    // The photos are dithered to one bit per dot when printed, JPEG loses nothing that shows.
+    private static final int PHOTO_QUALITY = 95;
+    private static final int DEFAULT_CAPACITY = 16;
+    static final int MAX_ATTEMPTS = 3;
+
+    private final ThermalPrinterPool mPrinters;
+    private final PhotoStripBuilder mStripBuilder;
+    private final File mSpoolDir;
+    private final File mJournal;
+    private final int mCapacity;
+    private final ImageEncoder mPhotoEncoder = new ImageEncoder("print", CompressFormat.JPEG,
+            PHOTO_QUALITY);
+
+    private final PriorityBlockingQueue<PrintJob> mQueue = new PriorityBlockingQueue<>(
+            DEFAULT_CAPACITY,
+            (a, b) -> a.getPriority() != b.getPriority()
+                    ? a.getPriority().compareTo(b.getPriority())
+                    : Long.compare(a.getId(), b.getId()));
+
+    private final List<Thread> mWorkers = new ArrayList<>();
+    private volatile boolean mStopping = false;
+    // Jobs being printed, and the printer each one is on.
+    private final Map<PrintJob, ThermalPrinter> mPrinting = new HashMap<>();
+    private long mNextId = 1;
+
+    private int mPrinted = 0;
+    private int mCancelled = 0;
+    private int mFailed = 0;
+    private long mTotalQueuedMs = 0;
+    private long mTotalPrintMs = 0;
+
+    /**
+     * @param stripBuilder Renders {@link PrintJob.Strip} jobs reloaded from the journal.
+     */
+    public PrintSpooler(ThermalPrinterPool printers, PhotoStripBuilder stripBuilder,
+                        File spoolDir) {
+        this(printers, stripBuilder, spoolDir, DEFAULT_CAPACITY);
+    }
+
+    public PrintSpooler(ThermalPrinterPool printers, PhotoStripBuilder stripBuilder,
+                        File spoolDir, int capacity) {
+        mPrinters = printers;
+        mStripBuilder = stripBuilder;
+        mSpoolDir = spoolDir;
+        mJournal = new File(spoolDir, JOURNAL_FILE);
+        mCapacity = capacity;
+        if (!spoolDir.isDirectory() && !spoolDir.mkdirs()) {
+            Log.w(TAG, "Unable to create spool directory " + spoolDir);
+        }
+    }
+
+    /**
+     * Compresses a photo into a new spool file on the calling thread, for a job to print from
+     * after a restart.  The job deletes the file once it is done with it.
+     *
+     * @return the file, or null if it couldn't be written.
+     */
+    public File spoolPhoto(Bitmap bitmap) {
+        File spoolFile = null;
+        try {
+            spoolFile = File.createTempFile(SPOOL_PREFIX, "." + mPhotoEncoder.getExtension(),
+                    mSpoolDir);
+            if (!mPhotoEncoder.encode(bitmap, new BufferedOutputStream(
+                    new FileOutputStream(spoolFile)))) {
+                throw new IOException("Unable to encode photo");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to spool photo", e);
+            if (spoolFile != null && !spoolFile.delete()) {
+                Log.w(TAG, "Unable to delete " + spoolFile);
+            }
+            return null;
+        }
+        return spoolFile;
+    }
+
+    /**
+     * Reloads journaled jobs, deletes spool files nothing refers to, and starts a worker thread
+     * per printer.
+     */
+    public synchronized void start() {
+        if (!mWorkers.isEmpty()) {
+            return;
+        }
+        Set<File> journaled = new HashSet<>();
+        for (PrintJob job : readJournal()) {
+            if (!hasSpoolFiles(job)) {
+                Log.w(TAG, "Spool file gone, dropping " + job);
+                continue;
+            }
+            mNextId = Math.max(mNextId, job.getId() + 1);
+            job.markQueued();
+            mQueue.add(job);
+            journaled.addAll(job.getSpoolFiles());
+        }
+        // Left by a crash between spooling and queueing, or by a job dropped above.
+        File[] spooled = mSpoolDir.listFiles((dir, name) -> name.startsWith(SPOOL_PREFIX));
+        if (spooled != null) {
+            for (File file : spooled) {
+                if (!journaled.contains(file) && !file.delete()) {
+                    Log.w(TAG, "Unable to delete orphaned spool file " + file);
+                }
+            }
+        }
+        if (!mQueue.isEmpty()) {
+            Log.i(TAG, "Resuming " + mQueue.size() + " journaled print jobs");
+        }
+        mStopping = false;
+        int workers = Math.max(1, mPrinters.size());
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(this::run, "PrintSpooler-" + i);
+            mWorkers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops the worker threads.  Queued jobs stay in the journal for the next start.
+     */
+    public void stop() {
+        List<Thread> workers;
+        synchronized (this) {
+            workers = new ArrayList<>(mWorkers);
+            mWorkers.clear();
+            mStopping = true;
+        }
+        if (workers.isEmpty()) {
+            return;
+        }
+        mPrinters.requestAbort();
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while stopping the spooler");
+                break;
+            }
+        }
+    }
+
+    /**
+     * Queues a job.
+     *
+     * @return false if the job is null or the queue is full.
+     */
+    public synchronized boolean submit(PrintJob job) {
+        if (job == null) {
+            return false;
+        }
+        if (mQueue.size() >= mCapacity) {
+            Log.w(TAG, "Print queue full, dropping " + job);
+            job.discard();
+            return false;
+        }
+        job.setId(mNextId++);
+        job.markQueued();
+        mQueue.add(job);
+        notifyAll();
+        writeJournal();
+        return true;
+    }
+
+    /**
+     * Cancels a queued or printing job.  A job that is printing stops at the next band.
+     *
+     * @return true if the job was found.
+     */
+    public synchronized boolean cancel(long jobId) {
+        for (Map.Entry<PrintJob, ThermalPrinter> printing : mPrinting.entrySet()) {
+            if (printing.getKey().getId() == jobId) {
+                printing.getKey().cancel();
+                if (printing.getValue() != null) {
+                    printing.getValue().requestAbort();
+                }
+                return true;
+            }
+        }
+        for (PrintJob job : mQueue) {
+            if (job.getId() == jobId) {
+                job.cancel();
+                mQueue.remove(job);
+                finish(job, false);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getQueuedJobCount() {
+        return mQueue.size();
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            PrintJob job;
+            try {
+                job = takeJob();
+            } catch (InterruptedException e) {
+                break;
+            }
+            ThermalPrinter printer;
+            try {
+                printer = mPrinters.acquire();
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    // Still journaled, put it back for the next start.
+                    mPrinting.remove(job);
+                    mQueue.add(job);
+                }
+                break;
+            }
+            if (printer == null) {
+                synchronized (this) {
+                    mPrinting.remove(job);
+                    if (mStopping) {
+                        mQueue.add(job);
+                        break;
+                    }
+                    // Nothing to print on, fail the job rather than hold on to it.
+                    Log.w(TAG, "No printers left for " + job);
+                    finish(job, true);
+                }
+                continue;
+            }
+            synchronized (this) {
+                mPrinting.put(job, printer);
+            }
+            if (!job.isCancelled()) {
+                job.markStarted();
+                try {
+                    job.print(printer);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Print job " + job + " failed", e);
+                }
+                job.markFinished();
+            }
+            boolean faulted = mPrinters.release(printer);
+            synchronized (this) {
+                mPrinting.remove(job);
+                if (mStopping && !job.isCancelled()) {
+                    // Shutting down mid-job: keep it journaled so it prints after restart.
+                    mQueue.add(job);
+                    break;
+                }
+                if (faulted && !job.isCancelled() && job.getAttempts() < MAX_ATTEMPTS) {
+                    Log.w(TAG, "Printer " + printer.getName() + " faulted, retrying " + job);
+                    job.markQueued();
+                    mQueue.add(job);
+                    notifyAll();
+                    writeJournal();
+                    continue;
+                }
+                finish(job, faulted);
+            }
+        }
+    }
+
+    /**
+     * Waits for the next job and moves it from the queue to the jobs being printed, in one step
+     * so the journal never misses it.
+     */
+    private synchronized PrintJob takeJob() throws InterruptedException {
+        PrintJob job;
+        while ((job = mQueue.poll()) == null) {
+            wait();
+        }
+        // Not on a printer yet, cancel() copes with that.
+        mPrinting.put(job, null);
+        return job;
+    }
+
+    /**
+     * Records a job that has left the queue for good and drops it from the journal.
+     */
+    private void finish(PrintJob job, boolean failed) {
+        if (job.isCancelled()) {
+            mCancelled++;
+            Log.i(TAG, "Cancelled " + job);
+        } else if (failed) {
+            mFailed++;
+            Log.w(TAG, "Giving up on " + job + " after " + job.getAttempts() + " attempts");
+        } else {
+            mPrinted++;
+            mTotalQueuedMs += job.getQueuedMs();
+            mTotalPrintMs += job.getPrintMs();
+            Log.i(TAG, "Printed " + job + ": queued " + job.getQueuedMs() + "ms, printing "
+                    + job.getPrintMs() + "ms");
+        }
+        job.discard();
+        writeJournal();
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Print spooler: " + mQueue.size() + " queued, " + mPrinted + " printed, "
+                + mCancelled + " cancelled, " + mFailed + " failed");
+        if (mPrinted > 0) {
+            writer.print(prefix);
+            writer.println("  average queued " + (mTotalQueuedMs / mPrinted) + "ms, printing "
+                    + (mTotalPrintMs / mPrinted) + "ms");
+        }
+        for (Map.Entry<PrintJob, ThermalPrinter> printing : mPrinting.entrySet()) {
+            writer.print(prefix);
+            writer.println("  printing " + printing.getKey() + " on "
+                    + (printing.getValue() == null ? "(waiting for a printer)"
+                    : printing.getValue().getName()));
+        }
+        mPrinters.dump(prefix + "  ", writer);
+    }
+
+    private static boolean hasSpoolFiles(PrintJob job) {
+        for (File file : job.getSpoolFiles()) {
+            if (!file.isFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<PrintJob> readJournal() {
+        List<PrintJob> jobs = new ArrayList<>();
+        if (!mJournal.exists()) {
+            return jobs;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(mJournal))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                PrintJob job = PrintJob.fromJournalLine(line, mStripBuilder);
+                if (job != null) {
+                    jobs.add(job);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read print journal", e);
+        }
+        return jobs;
+    }
+
+    /**
+     * Rewrites the journal with every job not yet printed.  Written to a temporary file first
+     * and renamed over the old one, so a crash leaves either the old or the new list.
+     */
+    private void writeJournal() {
+        File temp = new File(mSpoolDir, JOURNAL_FILE + ".tmp");
+        try (PrintWriter writer = new PrintWriter(new FileWriter(temp))) {
+            for (PrintJob printing : mPrinting.keySet()) {
+                if (!printing.isCancelled() && printing.isDurable()) {
+                    writer.println(printing.toJournalLine());
+                }
+            }
+            for (PrintJob job : mQueue) {
+                if (job.isDurable()) {
+                    writer.println(job.toJournalLine());
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write print journal", e);
+            return;
+        }
+        if (!temp.renameTo(mJournal)) {
+            Log.e(TAG, "Unable to replace print journal");
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import java.io.IOException;
+
+/**
+ * The serial link a {@link ThermalPrinter} sends its ESC/POS stream over.
+ */
+public interface PrinterPort {
+
+    String getName();
+
+    /**
+     * Line speed in bits per second, used to pace writes.
+     */
+    int getBaudRate();
+
+    /**
+     * Writes the first {@code length} bytes of {@code buffer}.
+     */
+    void write(byte[] buffer, int length) throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes links as QR codes, once each.
+ *
+ * Every link ends up on the photo strip and on the printed slip, so the encoded matrix is kept in
+ * a small LRU shared by both.  Matrices are stored at one bit per module, quiet zone included,
+ * and scaled by each consumer as it renders.
+ */
+public class QrCodeCache {
+
+    private static final String TAG = "QrCodeCache";
+    // A session has two links, a few sessions worth is plenty.
+    private static final int MAX_ENTRIES = 16;
+
+    private static final QrCodeCache sInstance = new QrCodeCache(MAX_ENTRIES);
+
+    private final LruCache<String, BitMatrix> mCache;
+    private final Map<EncodeHintType, ErrorCorrectionLevel> mHints = new HashMap<>();
+
+    public static QrCodeCache getInstance() {
+        return sInstance;
+    }
+
+    QrCodeCache(int maxEntries) {
+        mCache = new LruCache<>(maxEntries);
+        mHints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.H); // H = 30% damage
+    }
+
+    /**
+     * @return the QR code for {@code data} at one module per bit, or null if it can't be encoded.
+     */
+    public BitMatrix getMatrix(String data) {
+        if (data == null) {
+            return null;
+        }
+        BitMatrix matrix = mCache.get(data);
+        if (matrix != null) {
+            return matrix;
+        }
+        try {
+            // A size of zero gets the smallest matrix, one bit per module.
+            matrix = new QRCodeWriter().encode(data, BarcodeFormat.QR_CODE, 0, 0, mHints);
+        } catch (WriterException e) {
+            Log.e(TAG, "Unable to encode " + data, e);
+            return null;
+        }
+        mCache.put(data, matrix);
+        return matrix;
+    }
+
+    /**
+     * @return the largest whole number of dots per module that fits the code in {@code size}.
+     */
+    public static int getScale(BitMatrix matrix, int size) {
+        return Math.max(1, size / matrix.getWidth());
+    }
+
+    /**
+     * Renders a code centered in a {@code size} square, scaled by a whole number of pixels per
+     * module, the same as ZXing lays it out when asked for that size.
+     *
+     * @param pixels Receives {@code size * size} ARGB pixels, allocated if null or too small.
+     * @return the pixels.
+     */
+    public static int[] renderPixels(BitMatrix matrix, int size, int[] pixels) {
+        int modules = matrix.getWidth();
+        size = Math.max(size, modules);
+        if (pixels == null || pixels.length < size * size) {
+            pixels = new int[size * size];
+        }
+        int scale = getScale(matrix, size);
+        int padding = (size - modules * scale) / 2;
+
+        // Render each module row once, then copy it down for the rest of its pixel rows.
+        int top = padding * size;
+        Arrays.fill(pixels, 0, size * size, Color.WHITE);
+        for (int my = 0; my < modules; my++) {
+            int rowStart = top + my * scale * size;
+            for (int mx = 0; mx < modules; mx++) {
+                if (matrix.get(mx, my)) {
+                    int x = rowStart + padding + mx * scale;
+                    Arrays.fill(pixels, x, x + scale, Color.BLACK);
+                }
+            }
+            for (int r = 1; r < scale; r++) {
+                System.arraycopy(pixels, rowStart, pixels, rowStart + r * size, size);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * @return the code for {@code data} as a {@code size} square bitmap, or null if it can't be
+     * encoded.
+     */
+    public Bitmap createBitmap(String data, int size) {
+        BitMatrix matrix = getMatrix(data);
+        if (matrix == null) {
+            return null;
+        }
+        size = Math.max(size, matrix.getWidth());
+        int[] pixels = renderPixels(matrix, size, null);
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.RGB_565);
+        bitmap.setPixels(pixels, 0, size, 0, 0, size, size);
+        return bitmap;
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("QR codes: " + mCache.size() + " cached, " + mCache.hitCount() + " hits, "
+                + mCache.missCount() + " misses");
+    }
+}
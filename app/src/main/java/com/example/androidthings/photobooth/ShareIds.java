@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import java.security.SecureRandom;
+
+/**
+ * Mints the IDs in printed share links, so a link exists the moment the photo is taken instead
+ * of after the upload and the Cloud Function.  The backend maps an ID to its storage object
+ * when the upload lands, under {@code /shares/<id>}.
+ *
+ * IDs are {@link #LENGTH} characters of Crockford's base 32, lower case and without I, L, O or U
+ * so they can be read back off paper.  That is 50 random bits, a collision is not expected in
+ * the lifetime of the booth and the function refuses to remap an ID if one happens anyway.
+ */
+public final class ShareIds {
+
+    static final int LENGTH = 10;
+    private static final char[] ALPHABET = "0123456789abcdefghjkmnpqrstvwxyz".toCharArray();
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private ShareIds() {
+    }
+
+    public static String mint() {
+        char[] id = new char[LENGTH];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = ALPHABET[sRandom.nextInt(ALPHABET.length)];
+        }
+        return new String(id);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Waits for share IDs to be mapped to their uploads, through one database subscription shared by
+ * every waiting request instead of a listener per upload.
+ *
+ * The subscription is a query on {@code /shares} for entries mapped since it was attached,
+ * ordered by the "mapped" timestamp the function writes.  It is attached when the first request
+ * starts waiting and removed when the last one resolves or times out.  Resolved URLs are kept in
+ * a small LRU, so asking again for a recent ID doesn't wait at all.
+ */
+public class ShareLinkResolver {
+
+    private static final String TAG = "ShareLinkResolver";
+    // A few sessions worth, two links each.
+    private static final int MAX_RESOLVED = 32;
+    // How far back the query starts, to cover the booth's clock running ahead of the server's.
+    private static final long CLOCK_SKEW_MARGIN_MS = 5 * 60 * 1000;
+
+    private final DatabaseReference mShares;
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor();
+
+    private final Map<String, Pending> mPending = new HashMap<>();
+    private final LruCache<String, String> mResolved = new LruCache<>(MAX_RESOLVED);
+    private Query mQuery;
+
+    private int mResolvedCount = 0;
+    private int mCacheHits = 0;
+    private int mTimedOut = 0;
+
+    private static class Pending {
+        final CompletableFuture<String> mFuture = new CompletableFuture<>();
+        ScheduledFuture<?> mTimeout;
+    }
+
+    private final ChildEventListener mListener = new ChildEventListener() {
+        @Override
+        public void onChildAdded(DataSnapshot snapshot, String previousChildName) {
+            onShareMapped(snapshot);
+        }
+
+        @Override
+        public void onChildChanged(DataSnapshot snapshot, String previousChildName) {
+            onShareMapped(snapshot);
+        }
+
+        @Override
+        public void onChildRemoved(DataSnapshot snapshot) {
+        }
+
+        @Override
+        public void onChildMoved(DataSnapshot snapshot, String previousChildName) {
+        }
+
+        @Override
+        public void onCancelled(DatabaseError error) {
+            Log.w(TAG, "Share subscription cancelled: " + error.getMessage());
+            synchronized (ShareLinkResolver.this) {
+                // Attached again by the next request, the waiting ones time out.
+                mQuery = null;
+            }
+        }
+    };
+
+    /**
+     * @param shares The {@code /shares} reference.
+     */
+    public ShareLinkResolver(DatabaseReference shares) {
+        mShares = shares;
+    }
+
+    /**
+     * @return completes with the URL the share ID redirects to once it is mapped, or
+     * exceptionally with a {@link TimeoutException} after {@code timeoutMs}.
+     */
+    public synchronized CompletableFuture<String> resolve(String shareId, long timeoutMs) {
+        String url = mResolved.get(shareId);
+        if (url != null) {
+            mCacheHits++;
+            return CompletableFuture.completedFuture(url);
+        }
+        Pending pending = mPending.get(shareId);
+        if (pending != null) {
+            return pending.mFuture;
+        }
+        pending = new Pending();
+        mPending.put(shareId, pending);
+        pending.mTimeout = mTimer.schedule(() -> timeOut(shareId), timeoutMs,
+                TimeUnit.MILLISECONDS);
+        // The subscription only looks back a few minutes, an ID mapped long ago, e.g. one reused
+        // for a duplicate upload, is found by a one-off read.
+        mShares.child(shareId).addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot snapshot) {
+                onShareMapped(snapshot);
+            }
+
+            @Override
+            public void onCancelled(DatabaseError error) {
+            }
+        });
+        if (mQuery == null) {
+            mQuery = mShares.orderByChild("mapped")
+                    .startAt(System.currentTimeMillis() - CLOCK_SKEW_MARGIN_MS);
+            mQuery.addChildEventListener(mListener);
+            Log.d(TAG, "Share subscription attached");
+        }
+        return pending.mFuture;
+    }
+
+    /**
+     * @return the URL a share ID was resolved to recently, or null.
+     */
+    public synchronized String getResolved(String shareId) {
+        return mResolved.get(shareId);
+    }
+
+    private void onShareMapped(DataSnapshot snapshot) {
+        String url = snapshot.child("url").getValue(String.class);
+        if (url == null) {
+            return;
+        }
+        Pending pending;
+        synchronized (this) {
+            mResolved.put(snapshot.getKey(), url);
+            pending = mPending.remove(snapshot.getKey());
+            if (pending == null) {
+                return;
+            }
+            pending.mTimeout.cancel(false);
+            mResolvedCount++;
+            detachIfIdle();
+        }
+        // Outside the lock, the callers' continuations run here.
+        pending.mFuture.complete(url);
+    }
+
+    private void timeOut(String shareId) {
+        Pending pending;
+        synchronized (this) {
+            pending = mPending.remove(shareId);
+            if (pending == null) {
+                return;
+            }
+            mTimedOut++;
+            detachIfIdle();
+        }
+        pending.mFuture.completeExceptionally(
+                new TimeoutException("Share " + shareId + " not mapped in time"));
+    }
+
+    private void detachIfIdle() {
+        if (mPending.isEmpty() && mQuery != null) {
+            mQuery.removeEventListener(mListener);
+            mQuery = null;
+            Log.d(TAG, "Share subscription removed");
+        }
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Share links: " + mPending.size() + " pending, " + mResolvedCount
+                + " resolved, " + mTimedOut + " timed out, " + mCacheHits + " cache hits, "
+                + (mQuery == null ? "not subscribed" : "subscribed"));
+    }
+}
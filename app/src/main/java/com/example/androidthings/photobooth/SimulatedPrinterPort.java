@@ -0,0 +1,292 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Stand-in for a thermal printer on a UART, for running the print path without hardware.
+ *
+ * Bytes "arrive" at line speed from the moment they are written.  The ESC/POS stream is parsed
+ * just enough to know how many dot lines each command feeds, and the printer works through its
+ * input buffer at a fixed number of dot lines per second.  Whenever the buffer would hold more
+ * than its capacity the write is counted as an overrun, which on the real printer means garbage
+ * or a lock-up.  Whenever both the link and the print head run dry partway through a job the gap
+ * is counted as idle time, which is throughput the pacing left on the table.
+ */
+public class SimulatedPrinterPort implements PrinterPort {
+
+    private static final String TAG = "SimulatedPrinterPort";
+
+    private static final int BITS_PER_BYTE = 10;
+    private static final int DEFAULT_LINE_SPACING = 30;
+    // Gaps shorter than this are noise, longer ones are the end of a job rather than starvation.
+    private static final long MIN_IDLE_GAP_NS = 2000000L;
+    private static final long MAX_IDLE_GAP_NS = 2000000000L;
+
+    private static final byte ESC = 0x1B;
+    private static final byte GS = 0x1D;
+    private static final byte LF = 0x0A;
+
+    private final String mName;
+    private final int mBaudRate;
+    private final long mNanosPerByte;
+    private final long mNanosPerDotLine;
+    private final int mBufferCapacity;
+
+    // Parsed work still in the printer's buffer: {done time, bytes}.
+    private final ArrayDeque<long[]> mPending = new ArrayDeque<>();
+    private long mArrivalEndNs = 0;
+    private long mPrintEndNs = 0;
+
+    // ESC/POS parser state.
+    private int mCommand = 0;
+    private final int[] mArgs = new int[6];
+    private int mArgsWanted = 0;
+    private int mArgsSeen = 0;
+    private long mDataRemaining = 0;
+    private int mLineSpacing = DEFAULT_LINE_SPACING;
+
+    // Bytes and dot lines parsed since the last item was queued.
+    private int mItemBytes = 0;
+    private int mItemDotLines = 0;
+
+    private int mOverruns = 0;
+    private int mPeakBufferedBytes = 0;
+    private int mIdleGaps = 0;
+    private long mIdleNs = 0;
+    private long mBytesWritten = 0;
+    private long mDotLinesPrinted = 0;
+    private boolean mClosed = false;
+    private long mFailAfterBytes = Long.MAX_VALUE;
+
+    public SimulatedPrinterPort(String name, int baudRate, int dotLinesPerSecond,
+                                int bufferCapacity) {
+        mName = name;
+        mBaudRate = baudRate;
+        mNanosPerByte = 1000000000L * BITS_PER_BYTE / baudRate;
+        mNanosPerDotLine = 1000000000L / dotLinesPerSecond;
+        mBufferCapacity = bufferCapacity;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public int getBaudRate() {
+        return mBaudRate;
+    }
+
+    /**
+     * Makes every write fail once {@code bytes} have been written, like a printer unplugged
+     * partway through a job.
+     */
+    public synchronized void setFailAfterBytes(long bytes) {
+        mFailAfterBytes = bytes;
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int length) throws IOException {
+        if (mClosed) {
+            throw new IOException(mName + " is closed");
+        }
+        if (mBytesWritten + length > mFailAfterBytes) {
+            throw new IOException(mName + " failed after " + mBytesWritten + " bytes");
+        }
+        long nowNs = System.nanoTime();
+        // The printer starves when both the link and the print head have nothing left to do.
+        long busyUntilNs = Math.max(mArrivalEndNs, mPrintEndNs);
+        long gapNs = nowNs - busyUntilNs;
+        if (busyUntilNs > 0 && gapNs >= MIN_IDLE_GAP_NS && gapNs <= MAX_IDLE_GAP_NS) {
+            mIdleGaps++;
+            mIdleNs += gapNs;
+        }
+        long arrivalStartNs = Math.max(nowNs, mArrivalEndNs);
+        mArrivalEndNs = arrivalStartNs + length * mNanosPerByte;
+        mBytesWritten += length;
+
+        for (int i = 0; i < length; i++) {
+            if (parse(buffer[i] & 0xff)) {
+                queueItem(arrivalStartNs + (i + 1) * mNanosPerByte);
+            }
+        }
+        if (mItemBytes > 0) {
+            queueItem(mArrivalEndNs);
+        }
+
+        // Everything printed by the time the last byte lands has left the buffer.
+        while (!mPending.isEmpty() && mPending.peekFirst()[0] <= mArrivalEndNs) {
+            mPending.removeFirst();
+        }
+        int buffered = 0;
+        for (long[] item : mPending) {
+            buffered += item[1];
+        }
+        mPeakBufferedBytes = Math.max(mPeakBufferedBytes, buffered);
+        if (buffered > mBufferCapacity) {
+            mOverruns++;
+            Log.w(TAG, mName + ": input buffer overrun, " + buffered + " of "
+                    + mBufferCapacity + " bytes");
+        }
+    }
+
+    /**
+     * Queues the bytes and dot lines parsed so far as one unit of printer work.
+     */
+    private void queueItem(long arrivedNs) {
+        long startNs = Math.max(arrivedNs, mPrintEndNs);
+        mPrintEndNs = startNs + mItemDotLines * mNanosPerDotLine;
+        mPending.addLast(new long[]{mPrintEndNs, mItemBytes});
+        mDotLinesPrinted += mItemDotLines;
+        mItemBytes = 0;
+        mItemDotLines = 0;
+    }
+
+    /**
+     * Feeds one byte to the ESC/POS parser.
+     *
+     * @return true if the byte completed a command that makes the printer feed paper.
+     */
+    private boolean parse(int b) {
+        mItemBytes++;
+        if (mDataRemaining > 0) {
+            mDataRemaining--;
+            return false;
+        }
+        if (mArgsWanted > 0) {
+            mArgs[mArgsSeen++] = b;
+            if (mArgsSeen < mArgsWanted) {
+                return false;
+            }
+            mArgsWanted = 0;
+            return completeCommand();
+        }
+        if (mCommand == ESC || mCommand == GS) {
+            mCommand = (mCommand << 8) | b;
+            return startCommand();
+        }
+        if (b == ESC || b == GS) {
+            mCommand = b;
+            return false;
+        }
+        if (b == LF) {
+            mItemDotLines += mLineSpacing;
+            return true;
+        }
+        // Printable text, it is printed on the next line feed.
+        return false;
+    }
+
+    private boolean startCommand() {
+        mArgsSeen = 0;
+        switch (mCommand) {
+            case (ESC << 8) | '@':
+                mLineSpacing = DEFAULT_LINE_SPACING;
+                mCommand = 0;
+                return false;
+            case (ESC << 8) | '2':
+                mLineSpacing = DEFAULT_LINE_SPACING;
+                mCommand = 0;
+                return false;
+            case (ESC << 8) | '3':
+            case (ESC << 8) | 'd':
+            case (ESC << 8) | 'J':
+                mArgsWanted = 1;
+                return false;
+            case (ESC << 8) | '7':
+                mArgsWanted = 3;
+                return false;
+            case (ESC << 8) | '*':
+                mArgsWanted = 3;
+                return false;
+            case (GS << 8) | 'L':
+                mArgsWanted = 2;
+                return false;
+            case (GS << 8) | 'v':
+                // GS v 0 m xL xH yL yH
+                mArgsWanted = 6;
+                return false;
+            default:
+                // Unknown to us, treat as a two byte command.
+                mCommand = 0;
+                return false;
+        }
+    }
+
+    private boolean completeCommand() {
+        int command = mCommand;
+        mCommand = 0;
+        switch (command) {
+            case (ESC << 8) | '3':
+                mLineSpacing = mArgs[0];
+                return false;
+            case (ESC << 8) | 'd':
+                mItemDotLines += mArgs[0] * mLineSpacing;
+                return true;
+            case (ESC << 8) | 'J':
+                mItemDotLines += mArgs[0];
+                return true;
+            case (ESC << 8) | '*':
+                int columns = mArgs[1] | (mArgs[2] << 8);
+                mDataRemaining = (long) columns * (mArgs[0] >= 32 ? 3 : 1);
+                return false;
+            case (GS << 8) | 'v':
+                int widthBytes = mArgs[2] | (mArgs[3] << 8);
+                int rows = mArgs[4] | (mArgs[5] << 8);
+                mDataRemaining = (long) widthBytes * rows;
+                mItemDotLines += rows;
+                // The rows print once their data is in, close enough to count them here.
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    public synchronized int getOverrunCount() {
+        return mOverruns;
+    }
+
+    public synchronized int getIdleGapCount() {
+        return mIdleGaps;
+    }
+
+    public synchronized long getIdleNanos() {
+        return mIdleNs;
+    }
+
+    public synchronized int getPeakBufferedBytes() {
+        return mPeakBufferedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + ": " + mBytesWritten + " bytes, " + mDotLinesPrinted + " dot lines, "
+                + mOverruns + " overruns, peak buffer " + mPeakBufferedBytes + "/"
+                + mBufferCapacity + ", " + mIdleGaps + " idle gaps totalling "
+                + (mIdleNs / 1000000) + "ms";
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        Log.i(TAG, toString());
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.content.Context;
+import android.graphics.Rect;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where everything goes on a photo strip, read from a JSON description and compiled once into a
+ * flat list of draw operations with their rects worked out.
+ *
+ * A layout looks like:
+ * <pre>
+ * {
+ *   "name": "2-up",
+ *   "width": 512, "height": 1536,
+ *   "elements": [
+ *     {"type": "photo", "slot": "original", "left": 48, "top": 48, "right": 480, "bottom": 464},
+ *     {"type": "logo", "left": 32, "top": 1040, "right": 480},
+ *     {"type": "qr", "slot": "original", "left": 0, "top": 1280, "right": 240, "bottom": 1520},
+ *     {"type": "label", "slot": "original", "left": 32, "baseline": 1280, "size": 26}
+ *   ]
+ * }
+ * </pre>
+ * Photos are stretched to their rect, a QR code is centered in the largest square that fits
+ * and the logo keeps its aspect ratio when "bottom" is left out.  Elements are drawn in order.
+ */
+public class StripLayout {
+
+    public enum Type {
+        LOGO, PHOTO, QR_CODE, LABEL
+    }
+
+    /**
+     * One thing to draw.  For labels, the rect's left and top are where the baseline starts.
+     */
+    public static final class Op {
+        public final Type type;
+        // PhotoStripBuilder.SLOT_ORIGINAL or SLOT_STYLIZED, unused for the logo.
+        public final int slot;
+        public final Rect rect;
+        public final float textSize;
+
+        Op(Type type, int slot, Rect rect, float textSize) {
+            this.type = type;
+            this.slot = slot;
+            this.rect = rect;
+            this.textSize = textSize;
+        }
+
+        /**
+         * @return true if the op is the same on every strip, i.e. belongs in the template.
+         */
+        public boolean isStatic() {
+            return type == Type.LOGO;
+        }
+    }
+
+    private final String mName;
+    private final int mWidth;
+    private final int mHeight;
+    private final Op[] mOps;
+
+    private StripLayout(String name, int width, int height, Op[] ops) {
+        mName = name;
+        mWidth = width;
+        mHeight = height;
+        mOps = ops;
+    }
+
+    public static StripLayout fromAsset(Context context, String path) throws IOException {
+        try (InputStream in = context.getAssets().open(path)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return fromJson(out.toString("UTF-8"));
+        } catch (JSONException e) {
+            throw new IOException("Bad strip layout " + path, e);
+        }
+    }
+
+    public static StripLayout fromJson(String json) throws JSONException {
+        JSONObject layout = new JSONObject(json);
+        int width = layout.getInt("width");
+        int height = layout.getInt("height");
+        JSONArray elements = layout.getJSONArray("elements");
+        Op[] ops = new Op[elements.length()];
+        for (int i = 0; i < ops.length; i++) {
+            ops[i] = parseOp(elements.getJSONObject(i));
+        }
+        return new StripLayout(layout.optString("name", "unnamed"), width, height, ops);
+    }
+
+    private static Op parseOp(JSONObject element) throws JSONException {
+        String type = element.getString("type");
+        switch (type) {
+            case "logo":
+                return new Op(Type.LOGO, -1, new Rect(element.getInt("left"),
+                        element.getInt("top"), element.getInt("right"),
+                        element.optInt("bottom", -1)), 0);
+            case "photo":
+                return new Op(Type.PHOTO, parseSlot(element), parseRect(element), 0);
+            case "qr":
+                return new Op(Type.QR_CODE, parseSlot(element), parseRect(element), 0);
+            case "label":
+                int left = element.getInt("left");
+                int baseline = element.getInt("baseline");
+                return new Op(Type.LABEL, parseSlot(element),
+                        new Rect(left, baseline, left, baseline),
+                        (float) element.getDouble("size"));
+            default:
+                throw new JSONException("Unknown element type " + type);
+        }
+    }
+
+    private static int parseSlot(JSONObject element) throws JSONException {
+        String slot = element.getString("slot");
+        switch (slot) {
+            case "original":
+                return PhotoStripBuilder.SLOT_ORIGINAL;
+            case "stylized":
+                return PhotoStripBuilder.SLOT_STYLIZED;
+            default:
+                throw new JSONException("Unknown slot " + slot);
+        }
+    }
+
+    private static Rect parseRect(JSONObject element) throws JSONException {
+        return new Rect(element.getInt("left"), element.getInt("top"), element.getInt("right"),
+                element.getInt("bottom"));
+    }
+
+    /**
+     * @return the same layout, {@code width} wide, every position scaled to match.
+     */
+    public StripLayout scaleToWidth(int width) {
+        float scale = width / (float) mWidth;
+        Op[] ops = new Op[mOps.length];
+        for (int i = 0; i < ops.length; i++) {
+            Op op = mOps[i];
+            Rect rect = new Rect(Math.round(op.rect.left * scale),
+                    Math.round(op.rect.top * scale), Math.round(op.rect.right * scale),
+                    op.rect.bottom < 0 ? -1 : Math.round(op.rect.bottom * scale));
+            ops[i] = new Op(op.type, op.slot, rect, op.textSize * scale);
+        }
+        return new StripLayout(mName, width, Math.round(mHeight * scale), ops);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the draw operations in order.  Not to be modified.
+     */
+    public Op[] getOps() {
+        return mOps;
+    }
+}
@@ -15,36 +15,31 @@
  */
 package com.example.androidthings.photobooth;
 
-import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.util.Log;
 
-import com.google.android.things.pio.PeripheralManager;
-import com.google.android.things.pio.UartDevice;
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.EncodeHintType;
-import com.google.zxing.WriterException;
 import com.google.zxing.common.BitMatrix;
-import com.google.zxing.qrcode.QRCodeWriter;
-import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.Hashtable;
-import java.util.List;
+import java.io.PrintWriter;
 
 public class ThermalPrinter {
 
-    private static final byte[] PRINTER_SELECT_BIT_IMAGE_MODE = {0x1B, 0x2A, 33};
+    static final int DEFAULT_CHUNK_SIZE = 400;
+    // The Ada 597 prints 384 dots across a 58mm roll.
+    static final int PRINTER_DOT_WIDTH = 384;
+    // Conservative print speed with the darker heating settings below, about 25mm/s.
+    static final int DEFAULT_DOT_LINES_PER_SECOND = 200;
+    // Smallest input buffer among the printers we've tried.
+    static final int DEFAULT_PRINTER_BUFFER_BYTES = 4096;
+    // A write blocked for longer than this means the printer stopped taking data, e.g. out of
+    // paper or with its buffer full of garbage.
+    private static final long STALL_TIMEOUT_NS = 2000000000L;
+    // Text is printed at the 24 dot line spacing the raster bands set up.
+    private static final int TEXT_LINE_DOTS = EscPosRasterEncoder.BAND_HEIGHT;
     private final String TAG = "ThermalPrinter";
-    // Pulled from calling PeripheralManager.getUartDeviceList().
-    private final String UART_DEVICE_NAME = "USB1-1.2";
 
     private final byte[] PRINTER_INITIALIZE = {0x1B, 0x40};
-    private final byte ESC_CHAR = 0x1B;
-    private final byte[] PRINTER_SET_LINE_SPACE_24 = new byte[]{ESC_CHAR, 0x33, 24};
     // Slowing down the printer a little and increasing dot density, in order to make the QR
     // codes darker (they're a little faded at default settings).
     // Bytes represent the following: (first two): Print settings.
@@ -54,30 +49,110 @@ public class ThermalPrinter {
     private final byte[] PRINTER_DARKER_PRINTING = {0x1B, 0x37, 11, 0x7F, 50};
     private final byte[] PRINTER_PRINT_AND_FEED = {0x1B, 0x64};
     private final byte BYTE_LF = 0xA;
-    private UartDevice mDevice;
+    private PrinterPort mPort;
+    private UartPacer mPacer;
+    private volatile boolean mAbortRequested = false;
+
+    private final EscPosRasterEncoder mRasterEncoder = new EscPosRasterEncoder();
+    private final byte[] mChunk;
+
+    // Encoder savings, under their own lock since writeUartData holds the printer's while pacing.
+    private final Object mStatsLock = new Object();
+    private long mBytesSent = 0;
+    private long mBytesSaved = 0;
+    private long mNanosSaved = 0;
+
+    // Health, read by ThermalPrinterPool between jobs.
+    private volatile long mBytesWritten = 0;
+    private volatile int mWriteErrors = 0;
+    private volatile int mStalls = 0;
+
+    /**
+     * Prints through an already opened port, a {@link UartPrinterPort} found by
+     * {@link ThermalPrinterPool#discover} or a {@link SimulatedPrinterPort}.
+     */
+    ThermalPrinter(PrinterPort port) {
+        this(port, DEFAULT_CHUNK_SIZE);
+    }
 
-    // Config settings for Ada 597 thermal printer.
-    ThermalPrinter(Context c) {
-        PeripheralManager manager = PeripheralManager.getInstance();
-        try {
-            List<String> devices = manager.getUartDeviceList();
-            if (devices.contains(UART_DEVICE_NAME)) {
-                Log.d(TAG, "Connecting to thermal printer at " + UART_DEVICE_NAME);
-                mDevice = manager.openUartDevice(UART_DEVICE_NAME);
-                configureUartFrame(mDevice);
-                configurePrinter();
-            }
+    /**
+     * @param chunkSize Most bytes written to the port at once.  Smaller chunks pace more finely
+     *                  but cost more writes.
+     */
+    ThermalPrinter(PrinterPort port, int chunkSize) {
+        if (chunkSize <= 0 || chunkSize >= DEFAULT_PRINTER_BUFFER_BYTES) {
+            throw new IllegalArgumentException("Chunk size out of range: " + chunkSize);
+        }
+        mChunk = new byte[chunkSize];
+        attach(port);
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void attach(PrinterPort port) {
+        mPort = port;
+        // A chunk of headroom, a write that runs late shifts the printer behind the pacer's model.
+        mPacer = new UartPacer(port.getBaudRate(), DEFAULT_DOT_LINES_PER_SECOND,
+                DEFAULT_PRINTER_BUFFER_BYTES - mChunk.length);
+        configurePrinter();
+    }
+
+    /**
+     * @return the name of the port the printer is on, or null if it isn't connected.
+     */
+    String getName() {
+        return mPort == null ? null : mPort.getName();
+    }
+
+    boolean isConnected() {
+        return mPort != null;
+    }
+
+    long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return how many writes failed or stalled since the printer was opened.
+     */
+    int getFaultCount() {
+        return mWriteErrors + mStalls;
+    }
+
+    /**
+     * @return how long the printer is expected to keep printing what it has been sent already.
+     */
+    synchronized long getPendingPrintNanos() {
+        if (mPacer == null) {
+            return 0;
         }
+        return Math.max(0, mPacer.getPrintEndNs() - System.nanoTime());
+    }
+
+    /**
+     * Makes the image being printed stop at the next band, and anything printed after it return
+     * straight away, until {@link #clearAbort()}.
+     */
+    void requestAbort() {
+        mAbortRequested = true;
+    }
+
+    void clearAbort() {
+        mAbortRequested = false;
+    }
+
+    /**
+     * Sends images with {@code GS v 0}, trimming white on both sides of every band.  Off by
+     * default: not every firmware revision of the Ada 597 handles it, while the 24-dot bit
+     * image mode works everywhere and still has white on the right trimmed.
+     */
+    void setRasterModeSupported(boolean supported) {
+        mRasterEncoder.setRasterMode(supported);
     }
 
     private void configurePrinter() {
         ByteArrayOutputStream config = getOutputStream();
         writeToPrinterBuffer(config, PRINTER_INITIALIZE);
         writeToPrinterBuffer(config, PRINTER_DARKER_PRINTING);
-        print(config);
+        print(config, 0);
     }
 
     private void writeToPrinterBuffer(ByteArrayOutputStream printerBuffer, byte[] command) {
@@ -101,101 +176,127 @@ public class ThermalPrinter {
         }
     }
 
-    private void print(ByteArrayOutputStream output) {
+    private void print(ByteArrayOutputStream output, int dotLines) {
         try {
-            writeUartData(output.toByteArray());
+            byte[] data = output.toByteArray();
+            writeUartData(data, data.length, dotLines);
         } catch (IOException e) {
             Log.d(TAG, "IO Exception while printing.", e);
         }
     }
 
-    // Specific settings for the Ada 597 thermal printer.
-    private void configureUartFrame(UartDevice uart) throws IOException {
-        // Configure the UART port
-        uart.setBaudrate(19200);
-        uart.setDataSize(8);
-        uart.setParity(UartDevice.PARITY_NONE);
-        uart.setStopBits(1);
+    /**
+     * Prints a QR code centered in a {@code size} square, each module scaled to a whole number of
+     * dots so the edges stay sharp.  Bands are encoded straight from the matrix.
+     */
+    private void printMatrix(BitMatrix matrix, int size) {
+        // Nothing wider than the print head, padding included.
+        size = Math.min(size, PRINTER_DOT_WIDTH);
+        int modules = matrix.getWidth();
+        int scale = QrCodeCache.getScale(matrix, size);
+        int padding = (Math.max(size, modules) - modules * scale) / 2;
+        int height = modules * scale + padding * 2;
+
+        mRasterEncoder.beginImage();
+        for (int row = 0; row < height && !mAbortRequested;
+             row += EscPosRasterEncoder.BAND_HEIGHT) {
+            int length = mRasterEncoder.encodeMatrixBand(matrix, scale, padding, row);
+            if (!writeEncodedBand(length)) {
+                return;
+            }
+        }
+        finishImage("QR code");
     }
 
-    void printImage(Bitmap bitmap) {
-        if (mDevice == null) {
+    /**
+     * Prints a strip as it is rendered, each band going out as soon as it is composited, so the
+     * first dots are on paper before the rest of the strip exists.
+     */
+    void printStrip(MonoStripRenderer renderer) {
+        if (mPort == null) {
             return;
         }
-        int width = bitmap.getWidth();
-        int height = bitmap.getHeight();
-
-        final byte[] controlByte = {(byte) (0x00ff & width), (byte) ((0xff00 & width) >> 8)};
-        int[] pixels = new int[width * height];
-
-        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
-
-        final int BAND_HEIGHT = 24;
-
-        // Bands of pixels are sent that are 8 pixels high.  Iterate through bitmap
-        // 24 rows of pixels at a time, capturing bytes representing vertical slices 1 pixel wide.
-        // Each bit indicates if the pixel at that position in the slice should be dark or not.
-        for (int row = 0; row < height; row += BAND_HEIGHT) {
-            ByteArrayOutputStream imageData = getOutputStream();
-
-            writeToPrinterBuffer(imageData, PRINTER_SET_LINE_SPACE_24);
-
-            // Need to send these two sets of bytes at the beginning of each row.
-            writeToPrinterBuffer(imageData, PRINTER_SELECT_BIT_IMAGE_MODE);
-            writeToPrinterBuffer(imageData, controlByte);
-
-            // Columns, unlike rows, are one at a time.
-            for (int col = 0; col < width; col++) {
-
-                byte[] bandBytes = {0x0, 0x0, 0x0};
-
-                // Ugh, the nesting of forloops.  For each starting row/col position, evaluate
-                // each pixel in a column, or "band", 24 pixels high.  Convert into 3 bytes.
-                for (int rowOffset = 0; rowOffset < 8; rowOffset++) {
-
-                    // Because the printer only maintains correct height/width ratio
-                    // at the highest density, where it takes 24 bit-deep slices, process
-                    // a 24-bit-deep slice as 3 bytes.
-                    int[] pixelSlice = new int[3];
-                    int pixel2Row = row + rowOffset + 8;
-                    int pixel3Row = row + rowOffset + 16;
+        long startNs = System.nanoTime();
+        long firstBandNs = 0;
+        int width = Math.min(renderer.getWidth(), PRINTER_DOT_WIDTH);
+        MonoBitmap band = renderer.getBand();
+        mRasterEncoder.beginImage();
+        while (renderer.hasNextBand() && !mAbortRequested) {
+            int rows = renderer.nextBand();
+            int length = mRasterEncoder.encodePackedBand(band.getData(), 0, band.getRowBytes(),
+                    width, rows);
+            if (!writeEncodedBand(length)) {
+                return;
+            }
+            if (firstBandNs == 0 && length > 0) {
+                firstBandNs = System.nanoTime() - startNs;
+            }
+        }
+        Log.d(TAG, "Strip: first band sent after " + (firstBandNs / 1000) + "us");
+        finishImage("Strip");
+    }
 
-                    // If we go past the bottom of the image, just send white pixels so the printer
-                    // doesn't do anything.  Everything still needs to be sent in sets of 3 rows.
-                    pixelSlice[0] = bitmap.getPixel(col, row + rowOffset);
-                    pixelSlice[1] = (pixel2Row >= bitmap.getHeight()) ?
-                            Color.WHITE : bitmap.getPixel(col, pixel2Row);
-                    pixelSlice[2] = (pixel3Row >= bitmap.getHeight()) ?
-                            Color.WHITE : bitmap.getPixel(col, pixel3Row);
+    /**
+     * Sends what the encoder just produced, if anything.
+     *
+     * @return false if the printer can't be written to.
+     */
+    private boolean writeEncodedBand(int length) {
+        if (length == 0) {
+            return true;
+        }
+        try {
+            writeUartData(mRasterEncoder.getBuffer(), length, mRasterEncoder.getLastDotLines());
+            return true;
+        } catch (IOException e) {
+            Log.d(TAG, "IO Exception while printing.", e);
+            return false;
+        }
+    }
 
-                    boolean[] isDark = {pixelSlice[0] == Color.BLACK,
-                            pixelSlice[1] == Color.BLACK,
-                            pixelSlice[2] == Color.BLACK};
+    /**
+     * Sends the image's trailing feed and logs how much the encoder saved over plain bands.
+     */
+    private void finishImage(String what) {
+        if (!writeEncodedBand(mRasterEncoder.finishImage())) {
+            return;
+        }
+        long sent = mRasterEncoder.getEncodedBytes();
+        long uncompressed = mRasterEncoder.getUncompressedBytes();
+        int dotLines = (int) mRasterEncoder.getDotLines();
+        long savedNs = mPacer.estimateNanos((int) uncompressed, dotLines)
+                - mPacer.estimateNanos((int) sent, dotLines);
+        synchronized (mStatsLock) {
+            mBytesSent += sent;
+            mBytesSaved += uncompressed - sent;
+            mNanosSaved += savedNs;
+        }
+        Log.d(TAG, what + ": sent " + sent + " of " + uncompressed + " bytes, about "
+                + (savedNs / 1000000) + "ms saved");
+    }
 
-                    // Towing that fine line between "should I forloop or not".  This will only
-                    // ever be 3 elements deep.
-                    if (isDark[0]) bandBytes[0] |= 1 << (7 - rowOffset);
-                    if (isDark[1]) bandBytes[1] |= 1 << (7 - rowOffset);
-                    if (isDark[2]) bandBytes[2] |= 1 << (7 - rowOffset);
-                }
-                writeToPrinterBuffer(imageData, bandBytes);
-            }
-            addLineFeed(imageData, 1);
-            print(imageData);
+    /**
+     * Prints the encoder savings over everything printed so far.
+     */
+    void dump(String prefix, PrintWriter writer) {
+        synchronized (mStatsLock) {
+            writer.print(prefix);
+            writer.println("Thermal printer: " + mBytesSent + " image bytes sent, " + mBytesSaved
+                    + " skipped, about " + (mNanosSaved / 1000000) + "ms saved");
         }
     }
 
     void printEmptyLines(int lines) {
-        if (mDevice == null) {
+        if (mPort == null) {
             return;
         }
         ByteArrayOutputStream printerBuffer = getOutputStream();
         addLineFeed(printerBuffer, lines);
-        print(printerBuffer);
+        print(printerBuffer, Math.max(1, lines) * TEXT_LINE_DOTS);
     }
 
     void printLn(String text) {
-        if (mDevice == null) {
+        if (mPort == null) {
             return;
         }
         // The EscPosBuilder will take our formatted text and convert it to a byte array
@@ -203,47 +304,66 @@ public class ThermalPrinter {
         ByteArrayOutputStream printerBuffer = getOutputStream();
         writeToPrinterBuffer(printerBuffer, text.getBytes());
         addLineFeed(printerBuffer, 1);
-        print(printerBuffer);
+        print(printerBuffer, TEXT_LINE_DOTS);
     }
 
-    private synchronized void writeUartData(byte[] data) throws IOException {
-        if (mDevice == null) {
-            return;
-        }
-
+    /**
+     * Sends data in chunks, holding each one back just long enough for the printer's input
+     * buffer to have room for it.  Sending too much too fast makes the printer either lock up
+     * or print garbage.
+     *
+     * @param dotLines Dot lines the printer feeds while printing {@code data}, used to estimate
+     *                 how fast it drains its buffer.
+     */
+    private synchronized void writeUartData(byte[] data, int length, int dotLines)
+            throws IOException {
         // If printer isn't initialized, abort.
-        if (mDevice == null) {
+        if (mPort == null) {
             return;
         }
 
-        // In the case of writing images, let's assume we shouldn't send more than 400 bytes
-        // at a time to avoid buffer overrun - At which point the thermal printer tends to
-        // either lock up or print garbage.
-        final int DEFAULT_CHUNK_SIZE = 400;
-
-        byte[] chunk = new byte[DEFAULT_CHUNK_SIZE];
-        ByteBuffer byteBuffer = ByteBuffer.wrap(data);
-        while (byteBuffer.remaining() > DEFAULT_CHUNK_SIZE) {
-            byteBuffer.get(chunk);
-            mDevice.write(chunk, chunk.length);
+        final int chunkSize = mChunk.length;
+        int offset = 0;
+        while (offset < length) {
+            int size = Math.min(chunkSize, length - offset);
+            // A band only prints once all of it is in, so its lines go with the last chunk.
+            int chunkLines = offset + size == length ? dotLines : 0;
+            long waitNs = mPacer.reserve(System.nanoTime(), size, chunkLines);
+            if (waitNs > 0) {
+                try {
+                    Thread.sleep(waitNs / 1000000, (int) (waitNs % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while pacing printer output", e);
+                }
+            }
+            long startNs = System.nanoTime();
             try {
-                this.wait(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                if (offset == 0 && size == length) {
+                    mPort.write(data, length);
+                } else {
+                    System.arraycopy(data, offset, mChunk, 0, size);
+                    mPort.write(mChunk, size);
+                }
+            } catch (IOException e) {
+                mWriteErrors++;
+                throw e;
             }
-        }
-        if (byteBuffer.hasRemaining()) {
-            byte[] lastChunk = new byte[byteBuffer.remaining()];
-            byteBuffer.get(lastChunk);
-            mDevice.write(lastChunk, lastChunk.length);
+            long tookNs = System.nanoTime() - startNs;
+            if (tookNs > STALL_TIMEOUT_NS) {
+                mStalls++;
+                Log.w(TAG, mPort.getName() + ": write stalled for " + (tookNs / 1000000) + "ms");
+            }
+            mBytesWritten += size;
+            offset += size;
         }
     }
 
     void close() {
-        if (mDevice != null) {
+        if (mPort != null) {
             try {
-                mDevice.close();
-                mDevice = null;
+                mPort.close();
+                mPort = null;
             } catch (IOException e) {
                 Log.w(TAG, "Unable to close UART device", e);
             }
@@ -255,44 +375,20 @@ public class ThermalPrinter {
     }
 
     public void printQrCode(String data, int size, String label) {
-        if (mDevice == null) {
+        if (mPort == null || mAbortRequested) {
             return;
         }
-
-        Bitmap qrBitmap;
-        try {
-            printLn("Here's your photo!");
-            printEmptyLines(1);
-            qrBitmap = generateQrCode(data, size);
-
-            Log.d(TAG, "Width: " + qrBitmap.getWidth() + ", Height: " + qrBitmap.getHeight());
-
-            printImage(qrBitmap);
-            if (label != null && !label.isEmpty()) {
-                printLn(label);
-                printEmptyLines(3);
-            }
-        } catch (WriterException e) {
-            Log.d(TAG, "Exception: ", e);
+        BitMatrix matrix = QrCodeCache.getInstance().getMatrix(data);
+        if (matrix == null) {
+            return;
         }
-    }
 
-    public Bitmap generateQrCode(String myCodeText, int size) throws WriterException {
-        Hashtable<EncodeHintType, ErrorCorrectionLevel> hintMap = new Hashtable<EncodeHintType, ErrorCorrectionLevel>();
-        hintMap.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.H); // H = 30% damage
-
-        QRCodeWriter qrCodeWriter = new QRCodeWriter();
-
-        BitMatrix bitMatrix = qrCodeWriter.encode(myCodeText, BarcodeFormat.QR_CODE, size, size,
-                hintMap);
-        int width = bitMatrix.getWidth();
-
-        Bitmap bmp = Bitmap.createBitmap(width, width, Bitmap.Config.RGB_565);
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < width; y++) {
-                bmp.setPixel(y, x, (bitMatrix.get(x, y) ? Color.BLACK : Color.WHITE));
-            }
+        printLn("Here's your photo!");
+        printEmptyLines(1);
+        printMatrix(matrix, size);
+        if (label != null && !label.isEmpty() && !mAbortRequested) {
+            printLn(label);
+            printEmptyLines(3);
         }
-        return Bitmap.createScaledBitmap(bmp, bmp.getWidth(), bmp.getHeight(), false);
     }
 }
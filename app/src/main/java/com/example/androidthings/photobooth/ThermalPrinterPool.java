@@ -0,0 +1,249 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.things.pio.PeripheralManager;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Every thermal printer attached to the booth, handed out one job at a time.
+ *
+ * {@link #acquire()} picks, among the printers that are idle and healthy, the one expected to
+ * finish what it was last sent soonest, and goes round-robin between printers that are equally
+ * idle.  A printer whose writes fail or stall during a job is taken out of rotation and only
+ * tried again after {@link #RETRY_DELAY_MS}.
+ */
+public class ThermalPrinterPool {
+
+    private static final String TAG = "ThermalPrinterPool";
+    // USB serial adapters show up as "USB<bus>-<port>", e.g. "USB1-1.2".  The on-board UARTs are
+    // left alone, the console may be on them.
+    static final String UART_NAME_PREFIX = "USB";
+    static final long RETRY_DELAY_MS = 30000;
+    // Printers whose buffers drain within this much of each other count as equally idle.
+    private static final long LOAD_TOLERANCE_NS = 50000000L;
+
+    private static class Member {
+        final ThermalPrinter printer;
+        boolean busy = false;
+        boolean healthy = true;
+        long retryAtMs = 0;
+
+        long acquiredAtMs;
+        long bytesAtAcquire;
+        int faultsAtAcquire;
+
+        int jobs = 0;
+        int failedJobs = 0;
+        long busyMs = 0;
+        long bytes = 0;
+
+        Member(ThermalPrinter printer) {
+            this.printer = printer;
+        }
+    }
+
+    private final List<Member> mMembers = new ArrayList<>();
+    private int mNextIndex = 0;
+
+    /**
+     * Opens a printer on every USB serial port.
+     *
+     * @param rasterMode Whether the printers take {@code GS v 0} raster images.
+     */
+    public static ThermalPrinterPool discover(PeripheralManager manager, boolean rasterMode) {
+        List<ThermalPrinter> printers = new ArrayList<>();
+        for (String name : manager.getUartDeviceList()) {
+            if (!name.startsWith(UART_NAME_PREFIX)) {
+                continue;
+            }
+            try {
+                Log.d(TAG, "Connecting to thermal printer at " + name);
+                ThermalPrinter printer = new ThermalPrinter(new UartPrinterPort(manager, name));
+                printer.setRasterModeSupported(rasterMode);
+                printers.add(printer);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to open " + name, e);
+            }
+        }
+        if (printers.isEmpty()) {
+            Log.w(TAG, "No thermal printers found");
+        }
+        return new ThermalPrinterPool(printers);
+    }
+
+    /**
+     * Makes a pool of {@link SimulatedPrinterPort}s, for running the print path without hardware.
+     * The simulated printers take raster images.
+     */
+    public static ThermalPrinterPool simulate(int count) {
+        List<ThermalPrinter> printers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ThermalPrinter printer = new ThermalPrinter(new SimulatedPrinterPort(
+                    "simulated" + i, UartPrinterPort.DEFAULT_BAUD_RATE,
+                    ThermalPrinter.DEFAULT_DOT_LINES_PER_SECOND,
+                    ThermalPrinter.DEFAULT_PRINTER_BUFFER_BYTES));
+            printer.setRasterModeSupported(true);
+            printers.add(printer);
+        }
+        return new ThermalPrinterPool(printers);
+    }
+
+    public ThermalPrinterPool(List<ThermalPrinter> printers) {
+        for (ThermalPrinter printer : printers) {
+            if (printer.isConnected()) {
+                mMembers.add(new Member(printer));
+            }
+        }
+    }
+
+    public int size() {
+        return mMembers.size();
+    }
+
+    /**
+     * Waits for a healthy printer to be free and reserves it until {@link #release}.
+     *
+     * @return the printer, or null straight away if the pool has none, e.g. none were found or
+     * the pool was closed.
+     */
+    public synchronized ThermalPrinter acquire() throws InterruptedException {
+        while (true) {
+            long nowMs = SystemClock.elapsedRealtime();
+            Member chosen = null;
+            long chosenLoad = Long.MAX_VALUE;
+            long nextRetryMs = Long.MAX_VALUE;
+            int count = mMembers.size();
+            if (count == 0) {
+                return null;
+            }
+            for (int i = 0; i < count; i++) {
+                // Start from where the last pick left off, so ties go round-robin.
+                Member member = mMembers.get((mNextIndex + i) % count);
+                if (!member.healthy) {
+                    if (member.retryAtMs > nowMs) {
+                        nextRetryMs = Math.min(nextRetryMs, member.retryAtMs);
+                        continue;
+                    }
+                    Log.i(TAG, member.printer.getName() + ": back in rotation");
+                    member.healthy = true;
+                }
+                if (member.busy) {
+                    continue;
+                }
+                long load = member.printer.getPendingPrintNanos();
+                if (chosen == null || load + LOAD_TOLERANCE_NS < chosenLoad) {
+                    chosen = member;
+                    chosenLoad = load;
+                }
+            }
+            if (chosen != null) {
+                mNextIndex = (mMembers.indexOf(chosen) + 1) % count;
+                chosen.busy = true;
+                chosen.acquiredAtMs = nowMs;
+                chosen.bytesAtAcquire = chosen.printer.getBytesWritten();
+                chosen.faultsAtAcquire = chosen.printer.getFaultCount();
+                chosen.printer.clearAbort();
+                return chosen.printer;
+            }
+            if (nextRetryMs == Long.MAX_VALUE) {
+                wait();
+            } else {
+                wait(Math.max(1, nextRetryMs - nowMs));
+            }
+        }
+    }
+
+    /**
+     * Returns a printer to the pool, taking it out of rotation if it failed or stalled since
+     * {@link #acquire()}.
+     *
+     * @return true if the printer faulted, i.e. the job may not have printed properly.
+     */
+    public synchronized boolean release(ThermalPrinter printer) {
+        Member member = find(printer);
+        if (member == null) {
+            return false;
+        }
+        long nowMs = SystemClock.elapsedRealtime();
+        member.busy = false;
+        member.jobs++;
+        member.busyMs += nowMs - member.acquiredAtMs;
+        member.bytes += printer.getBytesWritten() - member.bytesAtAcquire;
+        boolean faulted = printer.getFaultCount() != member.faultsAtAcquire;
+        if (faulted) {
+            member.failedJobs++;
+            member.healthy = false;
+            member.retryAtMs = nowMs + RETRY_DELAY_MS;
+            Log.w(TAG, printer.getName() + ": taken out of rotation for "
+                    + (RETRY_DELAY_MS / 1000) + "s");
+        }
+        notifyAll();
+        return faulted;
+    }
+
+    /**
+     * Aborts whatever every printer is printing.
+     */
+    public synchronized void requestAbort() {
+        for (Member member : mMembers) {
+            member.printer.requestAbort();
+        }
+    }
+
+    public synchronized void close() {
+        for (Member member : mMembers) {
+            member.printer.close();
+        }
+        mMembers.clear();
+        // Anyone waiting in acquire() gives up.
+        notifyAll();
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Printers: " + mMembers.size());
+        long nowMs = SystemClock.elapsedRealtime();
+        for (Member member : mMembers) {
+            long busyMs = member.busyMs + (member.busy ? nowMs - member.acquiredAtMs : 0);
+            long bytesPerSecond = member.busyMs > 0 ? member.bytes * 1000 / member.busyMs : 0;
+            String state = !member.healthy ? "out of rotation"
+                    : member.busy ? "printing" : "idle";
+            writer.print(prefix);
+            writer.println("  " + member.printer.getName() + ": " + state + ", " + member.jobs
+                    + " jobs (" + member.failedJobs + " failed), busy " + (busyMs / 1000)
+                    + "s, " + bytesPerSecond + " bytes/s, "
+                    + member.printer.getFaultCount() + " faults");
+            member.printer.dump(prefix + "    ", writer);
+        }
+    }
+
+    private Member find(ThermalPrinter printer) {
+        for (Member member : mMembers) {
+            if (member.printer == printer) {
+                return member;
+            }
+        }
+        return null;
+    }
+}
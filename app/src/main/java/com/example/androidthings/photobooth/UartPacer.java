@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+/**
+ * Decides how long to hold each chunk back so the printer's input buffer never overflows.
+ *
+ * The pacer models the printer as a FIFO: a chunk finishes arriving at line speed, its dot lines
+ * are printed at the estimated print speed once all of it is in, and then it leaves the buffer.
+ * A new chunk is only released when the bytes still held plus the chunk fit in the buffer.
+ * When the link is the bottleneck, as it usually is at 19200 baud, this never waits at all.
+ */
+public class UartPacer {
+
+    // 8N1 framing: start bit, 8 data bits, stop bit.
+    private static final int BITS_PER_BYTE = 10;
+    private static final int MAX_TRACKED_CHUNKS = 64;
+
+    private final long mNanosPerByte;
+    private final long mNanosPerDotLine;
+    private final int mBufferCapacity;
+
+    // Ring of chunks the printer may still be holding, oldest first.
+    private final long[] mChunkDoneNs = new long[MAX_TRACKED_CHUNKS];
+    private final int[] mChunkBytes = new int[MAX_TRACKED_CHUNKS];
+    private int mHead = 0;
+    private int mCount = 0;
+    private int mBufferedBytes = 0;
+
+    private long mArrivalEndNs = 0;
+    private long mPrintEndNs = 0;
+
+    /**
+     * @param baudRate          Line speed.
+     * @param dotLinesPerSecond Estimated print speed at the configured heating settings.
+     * @param bufferCapacity    Printer input buffer size in bytes.
+     */
+    public UartPacer(int baudRate, int dotLinesPerSecond, int bufferCapacity) {
+        mNanosPerByte = 1000000000L * BITS_PER_BYTE / baudRate;
+        mNanosPerDotLine = 1000000000L / dotLinesPerSecond;
+        mBufferCapacity = bufferCapacity;
+    }
+
+    /**
+     * Reserves room in the printer buffer for a chunk.
+     *
+     * @param nowNs    Current {@link System#nanoTime()}.
+     * @param bytes    Size of the chunk.
+     * @param dotLines Dot lines the printer will feed while working through the chunk.
+     * @return how long to wait before writing the chunk, in nanoseconds.
+     */
+    public long reserve(long nowNs, int bytes, int dotLines) {
+        retire(nowNs);
+        long sendNs = nowNs;
+        while (mCount > 0
+                && (mBufferedBytes + bytes > mBufferCapacity || mCount == MAX_TRACKED_CHUNKS)) {
+            sendNs = Math.max(sendNs, mChunkDoneNs[mHead]);
+            retireHead();
+        }
+
+        long arrivalStartNs = Math.max(sendNs, mArrivalEndNs);
+        mArrivalEndNs = arrivalStartNs + bytes * mNanosPerByte;
+        long printStartNs = Math.max(mArrivalEndNs, mPrintEndNs);
+        mPrintEndNs = printStartNs + dotLines * mNanosPerDotLine;
+
+        int tail = (mHead + mCount) % MAX_TRACKED_CHUNKS;
+        mChunkDoneNs[tail] = mPrintEndNs;
+        mChunkBytes[tail] = bytes;
+        mCount++;
+        mBufferedBytes += bytes;
+
+        return sendNs - nowNs;
+    }
+
+    /**
+     * @return the time the printer needs for the given work on an idle link, in nanoseconds.
+     */
+    public long estimateNanos(int bytes, int dotLines) {
+        return Math.max(bytes * mNanosPerByte, dotLines * mNanosPerDotLine);
+    }
+
+    /**
+     * @return when the printer is expected to have printed everything reserved so far.
+     */
+    public long getPrintEndNs() {
+        return mPrintEndNs;
+    }
+
+    private void retire(long nowNs) {
+        while (mCount > 0 && mChunkDoneNs[mHead] <= nowNs) {
+            retireHead();
+        }
+    }
+
+    private void retireHead() {
+        mBufferedBytes -= mChunkBytes[mHead];
+        mHead = (mHead + 1) % MAX_TRACKED_CHUNKS;
+        mCount--;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import com.google.android.things.pio.PeripheralManager;
+import com.google.android.things.pio.UartDevice;
+
+import java.io.IOException;
+
+/**
+ * {@link PrinterPort} backed by an Android Things {@link UartDevice}.
+ */
+public class UartPrinterPort implements PrinterPort {
+
+    // Specific settings for the Ada 597 thermal printer.
+    static final int DEFAULT_BAUD_RATE = 19200;
+
+    private final String mName;
+    private final int mBaudRate;
+    private final UartDevice mDevice;
+
+    public UartPrinterPort(PeripheralManager manager, String name) throws IOException {
+        this(manager, name, DEFAULT_BAUD_RATE);
+    }
+
+    public UartPrinterPort(PeripheralManager manager, String name, int baudRate)
+            throws IOException {
+        mName = name;
+        mBaudRate = baudRate;
+        mDevice = manager.openUartDevice(name);
+        try {
+            configureUartFrame();
+        } catch (IOException e) {
+            mDevice.close();
+            throw e;
+        }
+    }
+
+    private void configureUartFrame() throws IOException {
+        // Configure the UART port
+        mDevice.setBaudrate(mBaudRate);
+        mDevice.setDataSize(8);
+        mDevice.setParity(UartDevice.PARITY_NONE);
+        mDevice.setStopBits(1);
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public int getBaudRate() {
+        return mBaudRate;
+    }
+
+    @Override
+    public void write(byte[] buffer, int length) throws IOException {
+        mDevice.write(buffer, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mDevice.close();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which images have been uploaded, keyed by their content, so the same image asked for
+ * twice, e.g. by a duplicate FCM message, gets the link it already has instead of a second
+ * upload.
+ *
+ * The key is a 64-bit FNV-1a style hash of the pixels along with the size, role and encoder
+ * settings, which between them decide the encoded bytes, so it can be worked out before encoding
+ * and costs a single pass over the pixels.  A claim is kept in memory until its upload is queued,
+ * then appended to a file, so a crash in between never leaves a link that won't upload.  The
+ * file is compacted through a temporary file once it has grown to twice the
+ * {@link #MAX_ENTRIES} kept.
+ */
+public class UploadIndex {
+
+    private static final String TAG = "UploadIndex";
+    private static final String INDEX_FILE = "upload-index.txt";
+    private static final String FIELD_SEPARATOR = "\t";
+    static final int MAX_ENTRIES = 512;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final File mDir;
+    private final File mFile;
+    // Key to share ID, least recently claimed first.
+    private final Map<String, String> mShareIds = new LinkedHashMap<String, String>(16, 0.75f,
+            true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    // Claimed but not yet committed, kept out of the file, to how many claims are outstanding.
+    private final Map<String, Integer> mPending = new HashMap<>();
+    private int mFileLines = 0;
+
+    private int mHits = 0;
+    private int mMisses = 0;
+
+    public UploadIndex(File dir) {
+        mDir = dir;
+        mFile = new File(dir, INDEX_FILE);
+        load();
+    }
+
+    /**
+     * @return the key for a bitmap as encoded by {@code encoder} for {@code role}.
+     */
+    public static String getKey(Bitmap bitmap, String role, ImageEncoder encoder) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] row = new int[width];
+        long hash = FNV_OFFSET_BASIS;
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            // A whole pixel at a time rather than FNV's usual byte, a quarter of the multiplies.
+            for (int pixel : row) {
+                hash ^= pixel & 0xffffffffL;
+                hash *= FNV_PRIME;
+            }
+        }
+        return role + ":" + encoder + ":" + width + "x" + height + ":" + Long.toHexString(hash);
+    }
+
+    /**
+     * Gives the content a share ID: the one it already has, or {@code newShareId}, recorded in
+     * memory straight away so a duplicate arriving while the first copy uploads finds it too.
+     * Every claim must be followed by {@link #commit} or {@link #release}.
+     *
+     * @return the share ID to use, {@code newShareId} if the content is new.
+     */
+    public synchronized String claim(String key, String newShareId) {
+        String shareId = mShareIds.get(key);
+        if (shareId != null) {
+            mHits++;
+            Integer claims = mPending.get(key);
+            if (claims != null) {
+                mPending.put(key, claims + 1);
+            }
+            return shareId;
+        }
+        mMisses++;
+        mShareIds.put(key, newShareId);
+        mPending.put(key, 1);
+        return newShareId;
+    }
+
+    /**
+     * @return true if the content has been claimed but no upload of it is queued yet.
+     */
+    public synchronized boolean isPending(String key) {
+        return mPending.containsKey(key);
+    }
+
+    /**
+     * Writes a claim to disk once its upload is queued.  Any other claims on it are settled
+     * too, committing or releasing them does nothing.
+     */
+    public synchronized void commit(String key) {
+        String shareId = mShareIds.get(key);
+        if (mPending.remove(key) != null && shareId != null) {
+            append(key, shareId);
+        }
+    }
+
+    /**
+     * Gives up a claim whose upload never made it into the queue.  The content is forgotten
+     * once no other claim on it is outstanding.
+     */
+    public synchronized void release(String key) {
+        Integer claims = mPending.get(key);
+        if (claims == null) {
+            // Already committed, or forgotten.
+            return;
+        }
+        if (claims > 1) {
+            mPending.put(key, claims - 1);
+            return;
+        }
+        mPending.remove(key);
+        mShareIds.remove(key);
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Upload index: " + mShareIds.size() + " entries, " + mHits
+                + " duplicates skipped, " + mMisses + " new");
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(mFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                mFileLines++;
+                String[] parts = line.split(FIELD_SEPARATOR, -1);
+                if (parts.length < 2) {
+                    continue;
+                }
+                if (parts[1].isEmpty()) {
+                    // Released, written by older versions.
+                    mShareIds.remove(parts[0]);
+                } else {
+                    mShareIds.put(parts[0], parts[1]);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read upload index", e);
+        }
+    }
+
+    private void append(String key, String shareId) {
+        if (mFileLines >= 2 * MAX_ENTRIES) {
+            compact();
+            return;
+        }
+        try (PrintWriter writer = new PrintWriter(new FileWriter(mFile, true))) {
+            writer.println(key + FIELD_SEPARATOR + shareId);
+            mFileLines++;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write upload index", e);
+        }
+    }
+
+    /**
+     * Rewrites the file with just the entries kept, through a temporary file renamed over the
+     * old one so a crash leaves either.
+     */
+    private void compact() {
+        File temp = new File(mDir, INDEX_FILE + ".tmp");
+        int lines = 0;
+        try (PrintWriter writer = new PrintWriter(new FileWriter(temp))) {
+            for (Map.Entry<String, String> entry : mShareIds.entrySet()) {
+                if (!mPending.containsKey(entry.getKey())) {
+                    writer.println(entry.getKey() + FIELD_SEPARATOR + entry.getValue());
+                    lines++;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write upload index", e);
+            return;
+        }
+        if (!temp.renameTo(mFile)) {
+            Log.e(TAG, "Unable to replace upload index");
+            return;
+        }
+        mFileLines = lines;
+    }
+}
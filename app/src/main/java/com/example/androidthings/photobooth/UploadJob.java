@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * An encoded image waiting in the {@link UploadQueue}: the spool file holding its bytes and
+ * where it goes in storage.  Like a {@link PrintJob} it fits on one journal line, so it survives
+ * the app restarting.
+ */
+public class UploadJob {
+
+    private static final String TAG = "UploadJob";
+    private static final String FIELD_SEPARATOR = "\t";
+
+    public enum Priority {
+        // Declared from most to least urgent, the queue schedules in this order.
+        URGENT, DEFERRED
+    }
+
+    private long mId;
+    private final String mName;
+    private final File mFile;
+    private final String mContentType;
+    private final boolean mShare;
+    private final String mShareId;
+    private final Priority mPriority;
+    private final boolean mPreview;
+    private int mAttempts;
+
+    private long mQueuedAtMs;
+    private long mNextAttemptAtMs;
+
+    /**
+     * @param name  Path of the object under the "images" directory, e.g. "original-1234.jpg".
+     * @param file  Spool file with the encoded bytes, deleted once the upload succeeds.
+     * @param share   Whether the upload is marked for the social media feed.
+     * @param shareId The {@link ShareIds share ID} printed for it, or null.
+     * @param preview Whether this is a small stand-in, replaced by a later job of the same name.
+     */
+    public UploadJob(String name, File file, String contentType, boolean share, String shareId,
+                     Priority priority, boolean preview) {
+        this(name, file, contentType, share, shareId, priority, preview, 0);
+    }
+
+    private UploadJob(String name, File file, String contentType, boolean share, String shareId,
+                      Priority priority, boolean preview, int attempts) {
+        mName = name;
+        mFile = file;
+        mContentType = contentType;
+        mShare = share;
+        mShareId = shareId;
+        mPriority = priority;
+        mPreview = preview;
+        mAttempts = attempts;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    void setId(long id) {
+        mId = id;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public String getContentType() {
+        return mContentType;
+    }
+
+    public boolean isShared() {
+        return mShare;
+    }
+
+    public String getShareId() {
+        return mShareId;
+    }
+
+    public Priority getPriority() {
+        return mPriority;
+    }
+
+    public boolean isPreview() {
+        return mPreview;
+    }
+
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    void markQueued() {
+        mQueuedAtMs = SystemClock.uptimeMillis();
+        mNextAttemptAtMs = mQueuedAtMs;
+    }
+
+    /**
+     * Counts a failed attempt and holds the job back for {@code delayMs}.
+     */
+    void markFailed(long delayMs) {
+        mAttempts++;
+        mNextAttemptAtMs = SystemClock.uptimeMillis() + delayMs;
+    }
+
+    long getNextAttemptAtMs() {
+        return mNextAttemptAtMs;
+    }
+
+    /**
+     * @return how long since the job was queued, or since the app restarted for a resumed job.
+     */
+    long getQueuedMs() {
+        return SystemClock.uptimeMillis() - mQueuedAtMs;
+    }
+
+    String toJournalLine() {
+        return mId + FIELD_SEPARATOR + Uri.encode(mName) + FIELD_SEPARATOR
+                + Uri.encode(mFile.getPath()) + FIELD_SEPARATOR + Uri.encode(mContentType)
+                + FIELD_SEPARATOR + mShare + FIELD_SEPARATOR + mAttempts
+                + FIELD_SEPARATOR + Uri.encode(mShareId == null ? "" : mShareId)
+                + FIELD_SEPARATOR + mPriority.name() + FIELD_SEPARATOR + mPreview;
+    }
+
+    /**
+     * @return the job described by a journal line, or null if it can't be restored.
+     */
+    static UploadJob fromJournalLine(String line) {
+        String[] parts = line.split(FIELD_SEPARATOR, -1);
+        if (parts.length < 6) {
+            return null;
+        }
+        // Journals from before share IDs, priorities and previews stop at the sixth field.
+        String shareId = parts.length > 6 && !parts[6].isEmpty() ? Uri.decode(parts[6]) : null;
+        try {
+            Priority priority = parts.length > 7 ? Priority.valueOf(parts[7]) : Priority.URGENT;
+            boolean preview = parts.length > 8 && Boolean.parseBoolean(parts[8]);
+            UploadJob job = new UploadJob(Uri.decode(parts[1]), new File(Uri.decode(parts[2])),
+                    Uri.decode(parts[3]), Boolean.parseBoolean(parts[4]), shareId, priority,
+                    preview, Integer.parseInt(parts[5]));
+            job.setId(Long.parseLong(parts[0]));
+            return job;
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Dropping unreadable journal entry: " + line, e);
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "upload#" + mId + "(" + mName + (mPreview ? ", preview" : "") + ")";
+    }
+}
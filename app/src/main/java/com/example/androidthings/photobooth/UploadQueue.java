@@ -0,0 +1,441 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Uploads encoded images from a spool directory in the background, retrying until they make it.
+ *
+ * Each image is encoded into its own spool file, written once and never changed, before it is
+ * queued, so a dropped network costs the guest nothing but time.  A failed upload waits
+ * {@link #INITIAL_BACKOFF_MS}, doubling on every further failure up to {@link #MAX_BACKOFF_MS},
+ * and is never given up on.  At most {@link #MAX_CONCURRENT_UPLOADS} run at once, oldest first.
+ *
+ * {@link UploadJob.Priority#URGENT} uploads, the image a guest is waiting on, always go first.
+ * {@link UploadJob.Priority#DEFERRED} ones only start once nothing urgent has happened for
+ * {@link #DEFERRED_IDLE_MS}, i.e. between sessions, and are paused, not restarted, while a new
+ * urgent upload runs.  Jobs of the same name upload in the order queued, so a full image never
+ * lands before the preview it replaces.
+ *
+ * As with the {@link PrintSpooler}, every job not yet uploaded is listed in a journal file,
+ * rewritten on each change and reloaded by {@link #start()}.
+ */
+public class UploadQueue {
+
+    private static final String TAG = "UploadQueue";
+    private static final String JOURNAL_FILE = "upload-journal.txt";
+    private static final String SPOOL_PREFIX = "spool-";
+    static final int MAX_CONCURRENT_UPLOADS = 2;
+    static final long INITIAL_BACKOFF_MS = 2000;
+    static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+    // How long after the last urgent upload the booth counts as between sessions.
+    static final long DEFERRED_IDLE_MS = 20 * 1000;
+
+    private final UploadStore mStore;
+    private final File mSpoolDir;
+    private final File mJournal;
+
+    // Every job not yet uploaded, in the order queued, including the ones uploading.
+    private final List<UploadJob> mJobs = new ArrayList<>();
+    // Started uploads and their handles, null until the store returns one.
+    private final Map<UploadJob, UploadStore.Upload> mUploading = new HashMap<>();
+    // Deferred uploads paused to make way for urgent ones, a subset of mUploading.
+    private final Set<UploadJob> mPaused = new HashSet<>();
+    private long mLastUrgentMs = 0;
+    private Listener mListener;
+    private Thread mScheduler;
+    private long mNextId = 1;
+
+    private int mUploaded = 0;
+    private int mFailedAttempts = 0;
+    private long mTotalQueuedMs = 0;
+
+    private final UploadStore.Callback mCallback = new UploadStore.Callback() {
+        @Override
+        public void onUploaded(UploadJob job) {
+            finish(job);
+        }
+
+        @Override
+        public void onFailed(UploadJob job, Exception e) {
+            retryLater(job, e);
+        }
+    };
+
+    public UploadQueue(UploadStore store, File spoolDir) {
+        mStore = store;
+        mSpoolDir = spoolDir;
+        mJournal = new File(spoolDir, JOURNAL_FILE);
+        if (!spoolDir.isDirectory() && !spoolDir.mkdirs()) {
+            Log.w(TAG, "Unable to create spool directory " + spoolDir);
+        }
+    }
+
+    /**
+     * @return the directory spool files and the journal are kept in.
+     */
+    public File getSpoolDir() {
+        return mSpoolDir;
+    }
+
+    /**
+     * @return a new, empty spool file to encode an image into before {@link #enqueue}.
+     */
+    public File createSpoolFile(String extension) throws IOException {
+        return File.createTempFile(SPOOL_PREFIX, "." + extension, mSpoolDir);
+    }
+
+    /**
+     * Reloads journaled jobs, deletes spool files nothing refers to, and starts uploading.
+     */
+    public synchronized void start() {
+        if (mScheduler != null) {
+            return;
+        }
+        Set<File> journaled = new HashSet<>();
+        for (UploadJob job : readJournal()) {
+            if (!job.getFile().isFile()) {
+                Log.w(TAG, "Spool file gone, dropping " + job);
+                continue;
+            }
+            mNextId = Math.max(mNextId, job.getId() + 1);
+            job.markQueued();
+            mJobs.add(job);
+            journaled.add(job.getFile());
+        }
+        // Left by a crash between encoding and queueing, the session they belong to is over.
+        File[] spooled = mSpoolDir.listFiles((dir, name) -> name.startsWith(SPOOL_PREFIX));
+        if (spooled != null) {
+            for (File file : spooled) {
+                if (!journaled.contains(file) && !file.delete()) {
+                    Log.w(TAG, "Unable to delete orphaned spool file " + file);
+                }
+            }
+        }
+        if (!mJobs.isEmpty()) {
+            Log.i(TAG, "Resuming " + mJobs.size() + " journaled uploads");
+        }
+        mScheduler = new Thread(this::run, "UploadQueue");
+        mScheduler.start();
+    }
+
+    /**
+     * Stops starting uploads.  Jobs stay in the journal for the next start; uploads already
+     * running finish or fail on their own.
+     */
+    public void stop() {
+        Thread scheduler;
+        synchronized (this) {
+            scheduler = mScheduler;
+            mScheduler = null;
+        }
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.interrupt();
+        try {
+            scheduler.join();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while stopping the upload queue");
+        }
+    }
+
+    /**
+     * Queues uploads of encoded spool files, which the queue now owns.  Jobs queued together
+     * reach the journal together, a crash keeps either all or none of them.
+     */
+    public synchronized void enqueue(UploadJob... jobs) {
+        for (UploadJob job : jobs) {
+            job.setId(mNextId++);
+            job.markQueued();
+            mJobs.add(job);
+            noteUrgentActivity(job);
+        }
+        writeJournal();
+        notifyAll();
+    }
+
+    /**
+     * Told about every job uploaded, on the store's callback thread.
+     */
+    public interface Listener {
+        void onUploaded(UploadJob job);
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized int getPendingCount() {
+        return mJobs.size();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Actions actions = takeActions();
+                for (UploadJob job : actions.mPause) {
+                    Log.d(TAG, "Pausing " + job + " for urgent uploads");
+                    actions.mHandles.get(job).pause();
+                }
+                for (UploadJob job : actions.mResume) {
+                    Log.d(TAG, "Resuming " + job);
+                    actions.mHandles.get(job).resume();
+                }
+                for (UploadJob job : actions.mStart) {
+                    Log.d(TAG, "Uploading " + job + ", attempt " + (job.getAttempts() + 1));
+                    UploadStore.Upload upload = mStore.upload(job, mCallback);
+                    synchronized (this) {
+                        // Unless it already finished.
+                        if (mUploading.containsKey(job)) {
+                            mUploading.put(job, upload);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopping.
+        }
+    }
+
+    /**
+     * What the scheduler does next, worked out under the lock and carried out outside it.
+     */
+    private static class Actions {
+        final List<UploadJob> mStart = new ArrayList<>();
+        final List<UploadJob> mPause = new ArrayList<>();
+        final List<UploadJob> mResume = new ArrayList<>();
+        final Map<UploadJob, UploadStore.Upload> mHandles = new HashMap<>();
+
+        boolean isEmpty() {
+            return mStart.isEmpty() && mPause.isEmpty() && mResume.isEmpty();
+        }
+    }
+
+    /**
+     * Waits until there is something to start, pause or resume, and marks it done.
+     */
+    private synchronized Actions takeActions() throws InterruptedException {
+        while (true) {
+            Actions actions = new Actions();
+            long nowMs = SystemClock.uptimeMillis();
+            boolean urgentBusy = false;
+            for (UploadJob job : mJobs) {
+                if (job.getPriority() == UploadJob.Priority.URGENT
+                        && (mUploading.containsKey(job) || job.getNextAttemptAtMs() <= nowMs)) {
+                    urgentBusy = true;
+                    break;
+                }
+            }
+            long idleAtMs = mLastUrgentMs + DEFERRED_IDLE_MS;
+            boolean idle = !urgentBusy && nowMs >= idleAtMs;
+
+            // Urgent uploads get the whole uplink.
+            if (urgentBusy) {
+                for (Map.Entry<UploadJob, UploadStore.Upload> uploading : mUploading.entrySet()) {
+                    UploadJob job = uploading.getKey();
+                    if (job.getPriority() == UploadJob.Priority.DEFERRED
+                            && uploading.getValue() != null && mPaused.add(job)) {
+                        actions.mPause.add(job);
+                        actions.mHandles.put(job, uploading.getValue());
+                    }
+                }
+            }
+            int running = mUploading.size() - mPaused.size();
+            if (idle) {
+                for (UploadJob job : new ArrayList<>(mPaused)) {
+                    if (running >= MAX_CONCURRENT_UPLOADS) {
+                        break;
+                    }
+                    mPaused.remove(job);
+                    actions.mResume.add(job);
+                    actions.mHandles.put(job, mUploading.get(job));
+                    running++;
+                }
+            }
+
+            // A job waits for any earlier one of the same name, a full image for its preview.
+            Set<String> names = new HashSet<>();
+            Set<UploadJob> blocked = new HashSet<>();
+            for (UploadJob job : mJobs) {
+                if (!names.add(job.getName())) {
+                    blocked.add(job);
+                }
+            }
+
+            long nextWakeMs = Long.MAX_VALUE;
+            for (UploadJob.Priority priority : UploadJob.Priority.values()) {
+                boolean deferred = priority == UploadJob.Priority.DEFERRED;
+                for (UploadJob job : mJobs) {
+                    if (job.getPriority() != priority || mUploading.containsKey(job)
+                            || blocked.contains(job)) {
+                        continue;
+                    }
+                    long dueMs = deferred ? Math.max(job.getNextAttemptAtMs(), idleAtMs)
+                            : job.getNextAttemptAtMs();
+                    if (dueMs > nowMs || (deferred && !idle)) {
+                        // An idle time that depends on urgent uploads finishing isn't known
+                        // yet, they notify when they do.
+                        if (!(deferred && urgentBusy)) {
+                            nextWakeMs = Math.min(nextWakeMs, dueMs);
+                        }
+                    } else if (running < MAX_CONCURRENT_UPLOADS) {
+                        mUploading.put(job, null);
+                        actions.mStart.add(job);
+                        running++;
+                    }
+                }
+            }
+            if (!mPaused.isEmpty() && !urgentBusy && !idle) {
+                nextWakeMs = Math.min(nextWakeMs, idleAtMs);
+            }
+
+            if (!actions.isEmpty()) {
+                return actions;
+            }
+            if (nextWakeMs == Long.MAX_VALUE || running >= MAX_CONCURRENT_UPLOADS) {
+                wait();
+            } else {
+                wait(Math.max(1, nextWakeMs - nowMs));
+            }
+        }
+    }
+
+    private void noteUrgentActivity(UploadJob job) {
+        if (job.getPriority() == UploadJob.Priority.URGENT) {
+            mLastUrgentMs = SystemClock.uptimeMillis();
+        }
+    }
+
+    private void finish(UploadJob job) {
+        Listener listener;
+        synchronized (this) {
+            mUploading.remove(job);
+            mPaused.remove(job);
+            noteUrgentActivity(job);
+            mJobs.remove(job);
+            mUploaded++;
+            mTotalQueuedMs += job.getQueuedMs();
+            Log.i(TAG, "Uploaded " + job + " after " + job.getQueuedMs() + "ms and "
+                    + (job.getAttempts() + 1) + " attempts");
+            if (!job.getFile().delete()) {
+                Log.w(TAG, "Unable to delete spool file " + job.getFile());
+            }
+            writeJournal();
+            notifyAll();
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onUploaded(job);
+        }
+    }
+
+    private synchronized void retryLater(UploadJob job, Exception e) {
+        mUploading.remove(job);
+        mPaused.remove(job);
+        noteUrgentActivity(job);
+        mFailedAttempts++;
+        long delayMs = getBackoffMs(job.getAttempts());
+        job.markFailed(delayMs);
+        Log.w(TAG, "Upload of " + job + " failed, retrying in " + delayMs + "ms", e);
+        // Keeps the attempt count, so the backoff carries on where it left off after a restart.
+        writeJournal();
+        notifyAll();
+    }
+
+    /**
+     * @return the delay after the ({@code failures} + 1)th failure.
+     */
+    static long getBackoffMs(int failures) {
+        long delayMs = INITIAL_BACKOFF_MS;
+        for (int i = 0; i < failures && delayMs < MAX_BACKOFF_MS; i++) {
+            delayMs *= 2;
+        }
+        return Math.min(delayMs, MAX_BACKOFF_MS);
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Upload queue: " + mJobs.size() + " pending, " + mUploading.size()
+                + " uploading (" + mPaused.size() + " paused), " + mUploaded + " uploaded, "
+                + mFailedAttempts + " failed attempts");
+        if (mUploaded > 0) {
+            writer.print(prefix);
+            writer.println("  average queued " + (mTotalQueuedMs / mUploaded) + "ms");
+        }
+        long nowMs = SystemClock.uptimeMillis();
+        for (UploadJob job : mJobs) {
+            writer.print(prefix);
+            writer.println("  " + job + " " + job.getPriority() + ": " + job.getAttempts()
+                    + " failures, " + (mPaused.contains(job) ? "paused"
+                    : mUploading.containsKey(job) ? "uploading"
+                    : "next try in " + Math.max(0, job.getNextAttemptAtMs() - nowMs) + "ms"));
+        }
+    }
+
+    private List<UploadJob> readJournal() {
+        List<UploadJob> jobs = new ArrayList<>();
+        if (!mJournal.exists()) {
+            return jobs;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(mJournal))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                UploadJob job = UploadJob.fromJournalLine(line);
+                if (job != null) {
+                    jobs.add(job);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read upload journal", e);
+        }
+        return jobs;
+    }
+
+    /**
+     * Rewrites the journal with every job not yet uploaded, through a temporary file renamed
+     * over the old one so a crash leaves either the old or the new list.
+     */
+    private void writeJournal() {
+        File temp = new File(mSpoolDir, JOURNAL_FILE + ".tmp");
+        try (PrintWriter writer = new PrintWriter(new FileWriter(temp))) {
+            for (UploadJob job : mJobs) {
+                writer.println(job.toJournalLine());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write upload journal", e);
+            return;
+        }
+        if (!temp.renameTo(mJournal)) {
+            Log.e(TAG, "Unable to replace upload journal");
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+/**
+ * Somewhere the {@link UploadQueue} can put encoded images.  Firebase Storage on the booth,
+ * {@link InMemoryUploadStore} to exercise the queue without a network.
+ */
+public interface UploadStore {
+
+    /**
+     * Told how an upload went, on any thread.  Exactly one of the methods is called per upload.
+     */
+    interface Callback {
+        void onUploaded(UploadJob job);
+
+        void onFailed(UploadJob job, Exception e);
+    }
+
+    /**
+     * An upload in progress.  A paused upload keeps what it sent and carries on from there.
+     */
+    interface Upload {
+        void pause();
+
+        void resume();
+    }
+
+    /**
+     * Starts uploading the job's spool file and returns without waiting for it.
+     */
+    Upload upload(UploadJob job, Callback callback);
+}
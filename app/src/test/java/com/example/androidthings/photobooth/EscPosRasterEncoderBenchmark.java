@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Rough timing of the band encoder against the original {@code ESC *} loop, on a strip sized
+ * image.  Not a proper benchmark, and nothing is asserted since timings vary between machines;
+ * results are printed to stdout for comparing before and after a change.  Ignored so it stays
+ * out of the normal test run; remove the {@code @Ignore} locally to run it.
+ */
+public class EscPosRasterEncoderBenchmark {
+
+    private static final int WIDTH = 384;
+    private static final int HEIGHT = 1440;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 50;
+
+    @Ignore("Timing only, run by hand")
+    @Test
+    public void encodePackedBand_timing() {
+        int[] pixels = EscPosRasterEncoderTest.randomImage(new Random(1), WIDTH, HEIGHT);
+        EscPosRasterEncoder encoder = new EscPosRasterEncoder();
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runBaseline(pixels);
+            runEncoder(encoder, pixels);
+        }
+        long baselineNs = 0;
+        long encoderNs = 0;
+        long bytes = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            bytes += runBaseline(pixels);
+            baselineNs += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            bytes += runEncoder(encoder, pixels);
+            encoderNs += System.nanoTime() - start;
+        }
+
+        int bands = (HEIGHT + EscPosRasterEncoder.BAND_HEIGHT - 1)
+                / EscPosRasterEncoder.BAND_HEIGHT;
+        System.out.println(String.format("%dx%d, %d bands: baseline %.1fus/band, "
+                        + "encoder %.1fus/band (%d bytes)", WIDTH, HEIGHT, bands,
+                baselineNs / 1e3 / ROUNDS / bands, encoderNs / 1e3 / ROUNDS / bands, bytes));
+    }
+
+    private static int runBaseline(int[] pixels) {
+        return EscPosRasterEncoderTest.baselineEncode(pixels, WIDTH, HEIGHT).length;
+    }
+
+    private static int runEncoder(EscPosRasterEncoder encoder, int[] pixels) {
+        // Packing is timed too, the baseline reads the pixels itself.
+        int rowBytes = (WIDTH + 7) / 8;
+        byte[] packed = EscPosRasterEncoderTest.pack(pixels, WIDTH, HEIGHT);
+        int bytes = 0;
+        encoder.beginImage();
+        for (int top = 0; top < HEIGHT; top += EscPosRasterEncoder.BAND_HEIGHT) {
+            bytes += encoder.encodePackedBand(packed, top * rowBytes, rowBytes, WIDTH,
+                    HEIGHT - top);
+        }
+        return bytes + encoder.finishImage();
+    }
+}
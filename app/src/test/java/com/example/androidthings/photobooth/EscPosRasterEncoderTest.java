@@ -0,0 +1,236 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.google.zxing.common.BitMatrix;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks the band encoder against the bytes the original {@code ESC *} loop in
+ * {@code ThermalPrinter.printImage} sent.
+ */
+public class EscPosRasterEncoderTest {
+
+    private static final int BLACK = 0xFF000000;
+    private static final int WHITE = 0xFFFFFFFF;
+
+    @Test
+    public void encodePackedBand_matchesGoldenBytes() {
+        // A diagonal across the first 8 rows, and the last column's bottom dot.
+        int width = 8;
+        int height = 24;
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, WHITE);
+        for (int i = 0; i < 8; i++) {
+            pixels[i * width + i] = BLACK;
+        }
+        pixels[23 * width + 7] = BLACK;
+
+        byte[] expected = {
+                0x1B, 0x33, 24, 0x1B, 0x2A, 33, 8, 0,
+                (byte) 0x80, 0, 0, 0x40, 0, 0, 0x20, 0, 0, 0x10, 0, 0,
+                0x08, 0, 0, 0x04, 0, 0, 0x02, 0, 0, 0x01, 0, 0x01,
+                0x0A};
+
+        EscPosRasterEncoder encoder = new EscPosRasterEncoder();
+        encoder.beginImage();
+        assertArrayEquals(expected, encodeImage(encoder, pixels, width, height));
+        assertArrayEquals(expected, baselineEncode(pixels, width, height));
+    }
+
+    @Test
+    public void encodePackedBand_matchesBaselineOnRandomImages() {
+        Random random = new Random(42);
+        int[][] sizes = {{384, 24}, {384, 240}, {200, 40}, {9, 48}};
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            int[] pixels = randomImage(random, width, height);
+
+            EscPosRasterEncoder encoder = new EscPosRasterEncoder();
+            encoder.beginImage();
+            assertArrayEquals("image " + width + "x" + height,
+                    baselineEncode(pixels, width, height),
+                    encodeImage(encoder, pixels, width, height));
+        }
+    }
+
+    @Test
+    public void encodePackedBand_readsFromOffset() {
+        Random random = new Random(7);
+        int width = 384;
+        int height = 48;
+        int rowBytes = (width + 7) / 8;
+        byte[] packed = pack(randomImage(random, width, height), width, height);
+        byte[] secondBand = Arrays.copyOfRange(packed, rowBytes * EscPosRasterEncoder.BAND_HEIGHT,
+                packed.length);
+
+        EscPosRasterEncoder encoder = new EscPosRasterEncoder();
+        encoder.beginImage();
+        int length = encoder.encodePackedBand(secondBand, 0, rowBytes, width,
+                EscPosRasterEncoder.BAND_HEIGHT);
+        byte[] fromStart = copy(encoder, length);
+        length = encoder.encodePackedBand(packed, rowBytes * EscPosRasterEncoder.BAND_HEIGHT,
+                rowBytes, width, EscPosRasterEncoder.BAND_HEIGHT);
+        byte[] fromOffset = copy(encoder, length);
+        assertArrayEquals(fromStart, fromOffset);
+    }
+
+    @Test
+    public void encodeMatrixBand_matchesRenderedPixels() {
+        BitMatrix matrix = new BitMatrix(21, 21);
+        Random random = new Random(3);
+        for (int y = 0; y < 21; y++) {
+            for (int x = 0; x < 21; x++) {
+                if (random.nextBoolean()) {
+                    matrix.set(x, y);
+                }
+            }
+        }
+        // Ink in the rightmost module of every band, so no band is trimmed.
+        for (int y = 0; y < 21; y++) {
+            matrix.set(20, y);
+        }
+        int scale = 4;
+        int padding = 0;
+        int size = 21 * scale;
+        int[] pixels = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                pixels[y * size + x] = matrix.get(x / scale, y / scale) ? BLACK : WHITE;
+            }
+        }
+
+        EscPosRasterEncoder encoder = new EscPosRasterEncoder();
+        encoder.beginImage();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int top = 0; top < size; top += EscPosRasterEncoder.BAND_HEIGHT) {
+            int length = encoder.encodeMatrixBand(matrix, scale, padding, top);
+            out.write(encoder.getBuffer(), 0, length);
+        }
+        int length = encoder.finishImage();
+        out.write(encoder.getBuffer(), 0, length);
+        assertArrayEquals(baselineEncode(pixels, size, size), out.toByteArray());
+    }
+
+    @Test
+    public void blankBands_areSentAsOneFeed() {
+        int width = 16;
+        int height = 24 * 4;
+        int rowBytes = (width + 7) / 8;
+        byte[] packed = new byte[rowBytes * height];
+
+        EscPosRasterEncoder encoder = new EscPosRasterEncoder();
+        encoder.beginImage();
+        for (int top = 0; top < height; top += EscPosRasterEncoder.BAND_HEIGHT) {
+            assertEquals(0, encoder.encodePackedBand(packed, top * rowBytes, rowBytes, width,
+                    EscPosRasterEncoder.BAND_HEIGHT));
+        }
+        byte[] expected = {0x1B, 0x33, 24, 0x1B, 0x64, 4};
+        int length = encoder.finishImage();
+        assertArrayEquals(expected, copy(encoder, length));
+    }
+
+    static int[] randomImage(Random random, int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt(4) == 0 ? BLACK : WHITE;
+        }
+        // Ink in the last column of every band, the baseline never trimmed anything.
+        for (int top = 0; top < height; top += EscPosRasterEncoder.BAND_HEIGHT) {
+            pixels[top * width + width - 1] = BLACK;
+        }
+        return pixels;
+    }
+
+    /**
+     * Packs pixels one bit per dot, black set, the way {@link MonoBitmap} holds them.
+     */
+    static byte[] pack(int[] pixels, int width, int height) {
+        int rowBytes = (width + 7) / 8;
+        byte[] packed = new byte[rowBytes * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (pixels[y * width + x] == BLACK) {
+                    packed[y * rowBytes + (x >> 3)] |= (byte) (0x80 >>> (x & 7));
+                }
+            }
+        }
+        return packed;
+    }
+
+    static byte[] encodeImage(EscPosRasterEncoder encoder, int[] pixels, int width,
+                              int height) {
+        int rowBytes = (width + 7) / 8;
+        byte[] packed = pack(pixels, width, height);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int top = 0; top < height; top += EscPosRasterEncoder.BAND_HEIGHT) {
+            int length = encoder.encodePackedBand(packed, top * rowBytes, rowBytes, width,
+                    height - top);
+            out.write(encoder.getBuffer(), 0, length);
+        }
+        int length = encoder.finishImage();
+        out.write(encoder.getBuffer(), 0, length);
+        return out.toByteArray();
+    }
+
+    private static byte[] copy(EscPosRasterEncoder encoder, int length) {
+        return Arrays.copyOf(encoder.getBuffer(), length);
+    }
+
+    /**
+     * The original loop from {@code ThermalPrinter.printImage}, reading from a pixel array instead
+     * of {@code Bitmap.getPixel} but otherwise unchanged.  Rows past the bottom are white; the
+     * original only guarded the second and third byte of each column, so heights here are kept
+     * to ones it handled.
+     */
+    static byte[] baselineEncode(int[] pixels, int width, int height) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] controlByte = {(byte) (0x00ff & width), (byte) ((0xff00 & width) >> 8)};
+        for (int row = 0; row < height; row += 24) {
+            out.write(new byte[]{0x1B, 0x33, 24}, 0, 3);
+            out.write(new byte[]{0x1B, 0x2A, 33}, 0, 3);
+            out.write(controlByte, 0, 2);
+            for (int col = 0; col < width; col++) {
+                byte[] bandBytes = {0x0, 0x0, 0x0};
+                for (int rowOffset = 0; rowOffset < 8; rowOffset++) {
+                    int[] pixelSlice = new int[3];
+                    int pixel2Row = row + rowOffset + 8;
+                    int pixel3Row = row + rowOffset + 16;
+                    pixelSlice[0] = pixels[(row + rowOffset) * width + col];
+                    pixelSlice[1] = pixel2Row >= height ? WHITE : pixels[pixel2Row * width + col];
+                    pixelSlice[2] = pixel3Row >= height ? WHITE : pixels[pixel3Row * width + col];
+                    boolean[] isDark = {pixelSlice[0] == BLACK, pixelSlice[1] == BLACK,
+                            pixelSlice[2] == BLACK};
+                    if (isDark[0]) bandBytes[0] |= 1 << (7 - rowOffset);
+                    if (isDark[1]) bandBytes[1] |= 1 << (7 - rowOffset);
+                    if (isDark[2]) bandBytes[2] |= 1 << (7 - rowOffset);
+                }
+                out.write(bandBytes, 0, 3);
+            }
+            out.write(0x0A);
+        }
+        return out.toByteArray();
+    }
+}
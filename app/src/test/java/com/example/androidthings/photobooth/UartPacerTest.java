@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 The Android Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.photobooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Checks the pacer's model of the printer, and runs it against a {@link SimulatedPrinterPort}
+ * the way {@code ThermalPrinter.writeUartData} does.
+ */
+public class UartPacerTest {
+
+    private static final int BAUD_RATE = 9600;
+    // 8N1, 10 bits on the wire per byte.
+    private static final long NANOS_PER_BYTE = 1000000000L * 10 / BAUD_RATE;
+    private static final int DOT_LINES_PER_SECOND = 100;
+    private static final long NANOS_PER_DOT_LINE = 1000000000L / DOT_LINES_PER_SECOND;
+
+    // The simulated runs use a faster link and a small buffer so they finish quickly.
+    private static final int SIM_BAUD_RATE = 115200;
+    private static final int SIM_DOT_LINES_PER_SECOND = 400;
+    private static final int SIM_BUFFER_BYTES = 512;
+    private static final int SIM_CHUNK_BYTES = 64;
+    private static final int SIM_BANDS = 6;
+    private static final int SIM_BAND_COLUMNS = 160;
+
+    @Test
+    public void reserve_idleLinkDoesNotWait() {
+        UartPacer pacer = new UartPacer(BAUD_RATE, DOT_LINES_PER_SECOND, 100);
+        assertEquals(0, pacer.reserve(0, 100, 10));
+        // The lines are printed once the whole chunk is in.
+        assertEquals(100 * NANOS_PER_BYTE + 10 * NANOS_PER_DOT_LINE, pacer.getPrintEndNs());
+    }
+
+    @Test
+    public void reserve_chunksArriveBackToBack() {
+        UartPacer pacer = new UartPacer(BAUD_RATE, DOT_LINES_PER_SECOND, 1000);
+        assertEquals(0, pacer.reserve(0, 40, 0));
+        assertEquals(0, pacer.reserve(0, 40, 0));
+        assertEquals(80 * NANOS_PER_BYTE, pacer.getPrintEndNs());
+    }
+
+    @Test
+    public void reserve_waitsForRoomInBuffer() {
+        UartPacer pacer = new UartPacer(BAUD_RATE, DOT_LINES_PER_SECOND, 100);
+        assertEquals(0, pacer.reserve(0, 60, 24));
+        // The first chunk leaves the buffer once its 24 lines are printed.
+        long printedNs = 60 * NANOS_PER_BYTE + 24 * NANOS_PER_DOT_LINE;
+        assertEquals(printedNs, pacer.getPrintEndNs());
+        assertEquals(printedNs, pacer.reserve(0, 60, 0));
+        // Asking again later only waits for what is left.
+        pacer = new UartPacer(BAUD_RATE, DOT_LINES_PER_SECOND, 100);
+        pacer.reserve(0, 60, 24);
+        assertEquals(printedNs - 1000, pacer.reserve(1000, 60, 0));
+        // Once it has been printed there is nothing to wait for.
+        pacer = new UartPacer(BAUD_RATE, DOT_LINES_PER_SECOND, 100);
+        pacer.reserve(0, 60, 24);
+        assertEquals(0, pacer.reserve(printedNs, 60, 0));
+    }
+
+    @Test
+    public void estimateNanos_isTheSlowerOfLinkAndHead() {
+        UartPacer pacer = new UartPacer(BAUD_RATE, DOT_LINES_PER_SECOND, 100);
+        assertEquals(1000 * NANOS_PER_BYTE, pacer.estimateNanos(1000, 24));
+        assertEquals(240 * NANOS_PER_DOT_LINE, pacer.estimateNanos(100, 240));
+    }
+
+    @Test
+    public void pacedWrites_neverOverrunSimulatedPrinter() throws IOException {
+        SimulatedPrinterPort port = new SimulatedPrinterPort("sim", SIM_BAUD_RATE,
+                SIM_DOT_LINES_PER_SECOND, SIM_BUFFER_BYTES);
+        // A chunk of headroom, a write that runs late shifts the real printer behind the model.
+        UartPacer pacer = new UartPacer(SIM_BAUD_RATE, SIM_DOT_LINES_PER_SECOND,
+                SIM_BUFFER_BYTES - SIM_CHUNK_BYTES);
+        byte[] band = band(SIM_BAND_COLUMNS);
+
+        long startNs = System.nanoTime();
+        for (int i = 0; i < SIM_BANDS; i++) {
+            write(port, pacer, band, EscPosRasterEncoder.BAND_HEIGHT);
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+
+        assertEquals(port.toString(), 0, port.getOverrunCount());
+        assertTrue(port.toString(), port.getPeakBufferedBytes() <= SIM_BUFFER_BYTES);
+        // The head is the bottleneck here, so writing can't finish much before the printer has
+        // worked through everything but the last buffer full.
+        long printNs = (long) SIM_BANDS * EscPosRasterEncoder.BAND_HEIGHT * 1000000000L
+                / SIM_DOT_LINES_PER_SECOND;
+        long bufferNs = 2L * EscPosRasterEncoder.BAND_HEIGHT * 1000000000L
+                / SIM_DOT_LINES_PER_SECOND;
+        assertTrue("finished after " + elapsedNs + "ns", elapsedNs >= printNs - bufferNs);
+    }
+
+    @Test
+    public void unpacedWrites_overrunSimulatedPrinter() throws IOException {
+        SimulatedPrinterPort port = new SimulatedPrinterPort("sim", SIM_BAUD_RATE,
+                SIM_DOT_LINES_PER_SECOND, SIM_BUFFER_BYTES);
+        byte[] band = band(SIM_BAND_COLUMNS);
+        for (int i = 0; i < SIM_BANDS; i++) {
+            port.write(band, band.length);
+        }
+        assertTrue(port.toString(), port.getOverrunCount() > 0);
+    }
+
+    /**
+     * Writes in chunks, waiting for the pacer in between, like
+     * {@code ThermalPrinter.writeUartData}.
+     */
+    private static void write(PrinterPort port, UartPacer pacer, byte[] data, int dotLines)
+            throws IOException {
+        byte[] chunk = new byte[SIM_CHUNK_BYTES];
+        int offset = 0;
+        while (offset < data.length) {
+            int size = Math.min(chunk.length, data.length - offset);
+            int chunkLines = offset + size == data.length ? dotLines : 0;
+            long waitNs = pacer.reserve(System.nanoTime(), size, chunkLines);
+            if (waitNs > 0) {
+                try {
+                    Thread.sleep(waitNs / 1000000, (int) (waitNs % 1000000));
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            System.arraycopy(data, offset, chunk, 0, size);
+            port.write(chunk, size);
+            offset += size;
+        }
+    }
+
+    /**
+     * @return a 24-dot {@code ESC *} band with ink in every column.
+     */
+    private static byte[] band(int columns) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x1B);
+        out.write(0x33);
+        out.write(EscPosRasterEncoder.BAND_HEIGHT);
+        out.write(0x1B);
+        out.write(0x2A);
+        out.write(33);
+        out.write(columns & 0xff);
+        out.write((columns >> 8) & 0xff);
+        for (int i = 0; i < columns * 3; i++) {
+            out.write(0x55);
+        }
+        out.write(0x0A);
+        return out.toByteArray();
+    }
+}
@@ -42,6 +42,13 @@ var photo_handler = new photos.PhotoHandler();
 exports.storageObjectChanged = functions.storage.object().onChange(function(event) {
     return photo_handler.storageObjectChanged(event);
 });
+
+/**
+ * Function executes on every share link, rewritten to it by Firebase Hosting.
+ */
+exports.share = functions.https.onRequest(function(req, res) {
+    return photo_handler.redirectShare(req, res);
+});
 // [END Photo processing (twitter and share URL)]
 
 // [START Assistant app]
@@ -37,6 +37,12 @@ var fs = require('fs');
  */
 var URL_SHORTENER_API_KEY = functions.config().shorturl.key;
 
+/**
+ * What share IDs are appended to for a share link, the same as the device's share_base_url,
+ * e.g. https://<project>.firebaseapp.com/s/
+ */
+var SHARE_BASE_URL = functions.config().share.base_url;
+
 /**
  * Constructor for new Photo Handler.
  */
@@ -63,6 +69,19 @@ PhotoHandler.prototype.storageObjectChanged = function(event) {
     var publicUrl = this.getPublicUrl(object);
     console.log('Public URL: ', publicUrl);
 
+    // The device already printed a link with its own share ID, point the ID at the file.
+    // A preview maps the ID early and is then replaced by the full image under the same
+    // name, only the full image is tweeted.
+    var shareId = object.metadata && object.metadata.shareid;
+    if (shareId) {
+        var isPreview = !!object.metadata.preview;
+        var shareUrl = SHARE_BASE_URL + shareId;
+        var sharePromise = this.writeShareToDatabase(object, shareId, publicUrl, isPreview);
+        var shareTweetPromise = tweetMe && !isPreview ?
+            this.tweetImage(object, shareUrl) : Promise.resolve();
+        return Promise.all([sharePromise, shareTweetPromise]);
+    }
+
     // Get a short URL (based on the public URL) to the file
     var that = this;
     var shortenAndWrite = this.shortenUrl(publicUrl)
@@ -151,6 +170,67 @@ PhotoHandler.prototype.writeShortUrlToDatabase = function(object, shortUrl) {
     return admin.database().ref(dbPath).set(shortUrl);
 }
 
+/**
+ * Map a device-minted share ID to a storage object, at /shares/<id>. An ID already mapped to
+ * another object is left alone, the redirect keeps pointing at the first photo. A preview
+ * arriving late doesn't replace the full image's mapping.
+ * @param {object} object a Firebase Storage object.
+ * @param {string} shareId the ID printed on the strip.
+ * @param {string} publicUrl where the share link should redirect.
+ * @param {boolean} isPreview whether the object is a preview to be replaced.
+ */
+PhotoHandler.prototype.writeShareToDatabase = function(object, shareId, publicUrl, isPreview) {
+    var ref = admin.database().ref('/shares/' + shareId);
+    return ref.transaction(function(current) {
+        if (current && current.path != object.name) {
+            // Abort, a collision.
+            return;
+        }
+        if (current && isPreview && !current.preview) {
+            // Abort, the full image is already mapped.
+            return;
+        }
+        return {
+            path: object.name,
+            url: publicUrl,
+            preview: isPreview,
+            // The device subscribes to shares by this, see ShareLinkResolver.
+            mapped: admin.database.ServerValue.TIMESTAMP
+        };
+    }).then(function(result) {
+        if (!result.committed) {
+            console.log('Share ID', shareId, 'left as it was, not mapped to', object.name);
+        }
+    });
+}
+
+/**
+ * Respond to a share link, /s/<id>, with a redirect to the photo. The link is printed before
+ * the upload lands, so an unknown ID gets a page that checks again shortly.
+ * @param {object} req Express request.
+ * @param {object} res Express response.
+ */
+PhotoHandler.prototype.redirectShare = function(req, res) {
+    var shareId = req.path.split('/').pop();
+    if (!/^[0-9a-z]{1,32}$/.test(shareId)) {
+        res.status(404).send('Not found');
+        return Promise.resolve();
+    }
+    return admin.database().ref('/shares/' + shareId).once('value')
+        .then(function(snapshot) {
+            var share = snapshot.val();
+            if (share && share.url) {
+                res.redirect(302, share.url);
+                return;
+            }
+            res.status(404)
+                .set('Cache-Control', 'no-store')
+                .send('<html><head><meta http-equiv="refresh" content="10"></head>' +
+                    '<body>Your photo is on its way, this page will refresh when it arrives.' +
+                    '</body></html>');
+        });
+}
+
 /**
  * Shorten a long URL using the Google URL shortener. Returns a promise
  * that resolves to the short URL, as a string.